@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.RpcConnection;
+import easyuse.rpc.RpcServer;
+import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.client.SimpleRpcClient;
+import easyuse.rpc.connection.BIORpcConnection;
+import easyuse.rpc.connection.NettyRpcConnection;
+import easyuse.rpc.server.BIORpcServer;
+import easyuse.rpc.server.NettyRpcServer;
+
+/**
+ * calls a loopback server through a proxy, over one multiplexed connection
+ * shared by 1, 8 or 32 caller threads. Throughput in calls per millisecond,
+ * latency as sampled call times.
+ * 
+ * @author dhf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( {
+        Mode.Throughput, Mode.SampleTime
+})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final long START_TIMEOUT = 10000L;
+
+    @Param( {
+            "bio", "netty"
+    })
+    public String transport;
+
+    @Param( {
+            "jdk", "jdkstream", "protostuff"
+    })
+    public String serializer;
+
+    @Param( {
+            "small", "medium", "large"
+    })
+    public String payload;
+
+    private RpcServer server;
+
+    private SimpleRpcClient client;
+
+    private EchoService service;
+
+    private Object args;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        int port = freePort();
+        Object rpcSerializer = Payloads.newSerializer(serializer);
+        Object[] handlers = new Object[] {
+            new EchoService.Impl()
+        };
+        RpcConnection connection = null;
+        if ("bio".equals(transport)) {
+            server = new BIORpcServer(port, (ServerSerializer) rpcSerializer,
+                    handlers);
+            connection = new BIORpcConnection("127.0.0.1", port,
+                    (ClientSerializer) rpcSerializer);
+        } else if ("netty".equals(transport)) {
+            server = new NettyRpcServer(port,
+                    (ServerSerializer) rpcSerializer, handlers);
+            connection = new NettyRpcConnection("127.0.0.1", port,
+                    (ClientSerializer) rpcSerializer);
+        } else {
+            throw new IllegalArgumentException("unknown transport: "
+                    + transport);
+        }
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening(port);
+
+        client = new SimpleRpcClient(connection);
+        service = client.proxy(EchoService.class);
+        args = Payloads.newArguments(payload);
+        // connect and resolve the proxy before measuring
+        Payloads.call(service, payload, args);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Throwable {
+        client.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object call1Thread() {
+        return Payloads.call(service, payload, args);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object call8Threads() {
+        return Payloads.call(service, payload, args);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object call32Threads() {
+        return Payloads.call(service, payload, args);
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50L);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a typical business pojo: scalars, a string and a list of strings
+ * 
+ * @author dhf
+ */
+public class Order implements Serializable {
+    private static final long serialVersionUID = 3902364872614358711L;
+
+    private long id;
+
+    private String customer;
+
+    private double amount;
+
+    private boolean paid;
+
+    private List<String> items;
+
+    public Order() {}
+
+    /**
+     * @param id
+     * @param itemCount
+     *            number of items of the order
+     */
+    public Order(long id, int itemCount) {
+        this.id = id;
+        this.customer = "customer-" + id;
+        this.amount = id * 10.5D;
+        this.paid = (id & 1) == 0;
+        this.items = new ArrayList<String>(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            this.items.add("item-" + id + "-" + i);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getCustomer() {
+        return customer;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public boolean isPaid() {
+        return paid;
+    }
+
+    public List<String> getItems() {
+        return items;
+    }
+}
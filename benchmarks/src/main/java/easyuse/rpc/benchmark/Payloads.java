@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.serializer.CompressingSerializer;
+import easyuse.rpc.serializer.GraphSerializer;
+import easyuse.rpc.serializer.JDKObjectSerializer;
+import easyuse.rpc.serializer.JDKStreamSerializer;
+import easyuse.rpc.serializer.ProtoStuffSerializer;
+import easyuse.rpc.serializer.ProtobufSerializer;
+
+/**
+ * serializers and payload shapes shared by the benchmarks.
+ * <p>
+ * Payloads:
+ * <ul>
+ * <li>small: <code>add(int, int)</code>, a few bytes</li>
+ * <li>medium: <code>echo(Order)</code>, one order of 10 items</li>
+ * <li>large: <code>echoList(List)</code>, 200 orders of 10 items, about
+ * 35 KB</li>
+ * </ul>
+ * </p>
+ * 
+ * @author dhf
+ */
+public class Payloads {
+    private static final int ITEMS_PER_ORDER = 10;
+
+    private static final int LARGE_ORDERS = 200;
+
+    /**
+     * @param name
+     *            jdk, jdkstream, protostuff, protobuf, graph or deflate
+     *            (protostuff compressed with the default threshold)
+     * @return a {@link easyuse.rpc.ClientSerializer} and
+     *         {@link easyuse.rpc.ServerSerializer}
+     */
+    public static Object newSerializer(String name) {
+        if ("jdk".equals(name)) {
+            return JDKObjectSerializer.getInstance();
+        }
+        if ("jdkstream".equals(name)) {
+            return new JDKStreamSerializer();
+        }
+        if ("protostuff".equals(name)) {
+            return ProtoStuffSerializer.getInstance();
+        }
+        if ("protobuf".equals(name)) {
+            return ProtobufSerializer.getInstance();
+        }
+        if ("graph".equals(name)) {
+            return new GraphSerializer();
+        }
+        if ("deflate".equals(name)) {
+            return CompressingSerializer.wrap(ProtoStuffSerializer
+                    .getInstance());
+        }
+        throw new IllegalArgumentException("unknown serializer: " + name);
+    }
+
+    /**
+     * @param payload
+     *            small, medium or large
+     * @return
+     */
+    public static InvokeRequest newRequest(String payload) {
+        String className = EchoService.class.getName();
+        if ("small".equals(payload)) {
+            return new InvokeRequest(1L, className, "add", new String[] {
+                    "int", "int"
+            }, new Object[] {
+                    1, 2
+            });
+        }
+        if ("medium".equals(payload)) {
+            return new InvokeRequest(1L, className, "echo", new String[] {
+                Order.class.getName()
+            }, new Object[] {
+                newOrder()
+            });
+        }
+        if ("large".equals(payload)) {
+            return new InvokeRequest(1L, className, "echoList",
+                    new String[] {
+                        List.class.getName()
+                    }, new Object[] {
+                        newOrders()
+                    });
+        }
+        throw new IllegalArgumentException("unknown payload: " + payload);
+    }
+
+    /**
+     * @param payload
+     *            small, medium or large
+     * @return
+     */
+    public static InvokeResponse newResponse(String payload) {
+        InvokeResponse response = new InvokeResponse(1L);
+        if ("small".equals(payload)) {
+            response.setResult(3);
+        } else {
+            response.setResult(newArguments(payload));
+        }
+        return response;
+    }
+
+    /**
+     * call the service method of the payload
+     * 
+     * @param service
+     * @param payload
+     * @param args
+     *            the arguments returned by {@link #newArguments(String)}
+     * @return
+     */
+    public static Object call(EchoService service, String payload,
+            Object args) {
+        if ("small".equals(payload)) {
+            return service.add(1, 2);
+        }
+        if ("medium".equals(payload)) {
+            return service.echo((Order) args);
+        }
+        @SuppressWarnings("unchecked")
+        List<Order> orders = (List<Order>) args;
+        return service.echoList(orders);
+    }
+
+    /**
+     * @param payload
+     * @return the argument of the service method of the payload
+     */
+    public static Object newArguments(String payload) {
+        if ("small".equals(payload)) {
+            return null;
+        }
+        if ("medium".equals(payload)) {
+            return newOrder();
+        }
+        if ("large".equals(payload)) {
+            return newOrders();
+        }
+        throw new IllegalArgumentException("unknown payload: " + payload);
+    }
+
+    private static Order newOrder() {
+        return new Order(1L, ITEMS_PER_ORDER);
+    }
+
+    private static List<Order> newOrders() {
+        List<Order> orders = new ArrayList<Order>(LARGE_ORDERS);
+        for (int i = 0; i < LARGE_ORDERS; i++) {
+            orders.add(new Order(i, ITEMS_PER_ORDER));
+        }
+        return orders;
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.Logger;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.LoggerHolder;
+import easyuse.rpc.util.ReusableByteArrayOutputStream;
+
+/**
+ * encodes and decodes whole frames, as the transports do: header, body and
+ * compression. The connection scoped jdkstream serializer is left out, its
+ * messages can not be decoded twice; the end to end benchmarks cover it.
+ * 
+ * @author dhf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+    private static final Logger logger = LoggerHolder
+            .getLogger(SerializerBenchmark.class);
+
+    @Param( {
+            "jdk", "protostuff", "protobuf", "graph", "deflate"
+    })
+    public String serializer;
+
+    @Param( {
+            "small", "medium", "large"
+    })
+    public String payload;
+
+    private FrameCodec codec;
+
+    private InvokeRequest request;
+
+    private InvokeResponse response;
+
+    private ReusableByteArrayOutputStream out;
+
+    private byte[] encodedRequest;
+
+    private byte[] encodedResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = new FrameCodec(Payloads.newSerializer(serializer));
+        request = Payloads.newRequest(payload);
+        response = Payloads.newResponse(payload);
+        out = new ReusableByteArrayOutputStream(4096, 16 * 1024 * 1024);
+
+        codec.writeRequest(out, request);
+        encodedRequest = out.toByteArray();
+        out.reset();
+        codec.writeResponse(out, response);
+        encodedResponse = out.toByteArray();
+        out.reset();
+        logger.info("{}/{}: request {} bytes, response {} bytes",
+                new Object[] {
+                        serializer, payload, encodedRequest.length,
+                        encodedResponse.length
+                });
+    }
+
+    @Benchmark
+    public int encodeRequest() throws IOException {
+        out.reset();
+        codec.writeRequest(out, request);
+        return out.size();
+    }
+
+    @Benchmark
+    public InvokeRequest decodeRequest() throws IOException {
+        return codec.readRequest(new ByteArrayInputStream(encodedRequest));
+    }
+
+    @Benchmark
+    public int encodeResponse() throws IOException {
+        out.reset();
+        codec.writeResponse(out, response);
+        return out.size();
+    }
+
+    @Benchmark
+    public InvokeResponse decodeResponse() throws IOException {
+        return codec.readResponse(new ByteArrayInputStream(encodedResponse));
+    }
+}
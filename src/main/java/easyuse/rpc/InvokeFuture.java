@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import easyuse.rpc.util.LoggerHolder;
+
+/**
+ * the pending result of a request sent through an {@link RpcConnection}
+ * 
+ * @author dhf
+ */
+public class InvokeFuture implements Future<InvokeResponse> {
+    private static final Logger logger = LoggerHolder
+            .getLogger(InvokeFuture.class);
+
+    private final long requestID;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private volatile InvokeResponse response;
+
+    private volatile Throwable cause;
+
+    private volatile boolean cancelled;
+
+    private List<InvokeListener> listeners;
+
+    public InvokeFuture(long requestID) {
+        this.requestID = requestID;
+    }
+
+    public long getRequestID() {
+        return requestID;
+    }
+
+    /**
+     * complete the future with the response
+     * 
+     * @param response
+     * @return false if the future is already completed
+     */
+    public boolean setResponse(InvokeResponse response) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.response = response;
+            latch.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * complete the future with a failure
+     * 
+     * @param cause
+     * @return false if the future is already completed
+     */
+    public boolean setFailure(Throwable cause) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.cause = cause;
+            latch.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * the response without waiting for it, null if the future is not done or
+     * failed
+     * 
+     * @return
+     */
+    public InvokeResponse getResponse() {
+        return isDone() ? response : null;
+    }
+
+    /**
+     * the failure cause, null if the future is not done or succeeded
+     * 
+     * @return
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * the listener is notified immediately if the future is already completed,
+     * otherwise in the thread completing the future
+     * 
+     * @param listener
+     */
+    public void addListener(InvokeListener listener) {
+        if (null == listener) {
+            throw new NullPointerException("listener");
+        }
+        synchronized (this) {
+            if (!isDone()) {
+                if (null == listeners) {
+                    listeners = new ArrayList<InvokeListener>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.cancelled = true;
+            this.cause = new CancellationException("requestID: " + requestID);
+            latch.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    @Override
+    public InvokeResponse get() throws InterruptedException,
+            ExecutionException {
+        latch.await();
+        return getResult();
+    }
+
+    @Override
+    public InvokeResponse get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("requestID: " + requestID);
+        }
+        return getResult();
+    }
+
+    /**
+     * block until the response arrived, the failure cause will be thrown
+     * directly instead of wrapped in an {@link ExecutionException}
+     * 
+     * @return
+     * @throws Throwable
+     */
+    public InvokeResponse awaitResponse() throws Throwable {
+        latch.await();
+        if (null != cause) {
+            throw cause;
+        }
+        return response;
+    }
+
+    private InvokeResponse getResult() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) cause;
+        }
+        if (null != cause) {
+            throw new ExecutionException(cause);
+        }
+        return response;
+    }
+
+    private void notifyListeners() {
+        List<InvokeListener> toNotify;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+        }
+        if (null == toNotify) {
+            return;
+        }
+        for (InvokeListener listener: toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(InvokeListener listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (Throwable t) {
+            logger.warn("notify invoke listener fail! requestID: <{}>",
+                    new Object[] {
+                        requestID
+                    }, t);
+        }
+    }
+}
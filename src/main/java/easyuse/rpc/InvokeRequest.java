@@ -36,9 +36,9 @@ import easyuse.rpc.util.MessageFormatter;
  * @author dhf
  */
 public final class InvokeRequest implements Serializable {
-    private static final long serialVersionUID = 2339729677060183691L;
+    private static final long serialVersionUID = -7028551490202343826L;
 
-    private String requestID;
+    private long requestID;
 
     private String className;
 
@@ -48,6 +48,26 @@ public final class InvokeRequest implements Serializable {
 
     private Object[] parameters;
 
+    /**
+     * ID of the method within the interface, only used when methodName is
+     * null
+     * 
+     * @see easyuse.rpc.util.MethodIDs
+     */
+    private int methodID = -1;
+
+    /**
+     * {@link System#nanoTime()} when the frame of the request was received,
+     * local to the server and never serialized
+     */
+    private transient long receivedNanos;
+
+    /**
+     * time spent deserializing the request, local to the server and never
+     * serialized
+     */
+    private transient long decodeNanos;
+
     public InvokeRequest() {}
 
     public InvokeRequest(String className, String methodName,
@@ -58,7 +78,7 @@ public final class InvokeRequest implements Serializable {
         this.parameters = parameters;
     }
 
-    public InvokeRequest(String requestID, String className, String methodName,
+    public InvokeRequest(long requestID, String className, String methodName,
             String[] parameterTypes, Object[] parameters) {
         this.requestID = requestID;
         this.className = className;
@@ -67,11 +87,28 @@ public final class InvokeRequest implements Serializable {
         this.parameters = parameters;
     }
 
-    public String getRequestID() {
+    /**
+     * create a compact request, which identifies the method by its ID instead
+     * of its name and parameter types
+     * 
+     * @param requestID
+     * @param className
+     * @param methodID
+     * @param parameters
+     */
+    public InvokeRequest(long requestID, String className, int methodID,
+            Object[] parameters) {
+        this.requestID = requestID;
+        this.className = className;
+        this.methodID = methodID;
+        this.parameters = parameters;
+    }
+
+    public long getRequestID() {
         return requestID;
     }
 
-    public void setRequestID(String requestID) {
+    public void setRequestID(long requestID) {
         this.requestID = requestID;
     }
 
@@ -99,6 +136,37 @@ public final class InvokeRequest implements Serializable {
         this.parameterTypes = parameterTypes;
     }
 
+    public int getMethodID() {
+        return methodID;
+    }
+
+    public void setMethodID(int methodID) {
+        this.methodID = methodID;
+    }
+
+    /**
+     * @return true if the method is identified by its ID
+     */
+    public boolean isCompact() {
+        return null == methodName;
+    }
+
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public void setDecodeNanos(long decodeNanos) {
+        this.decodeNanos = decodeNanos;
+    }
+
     public Object[] getParameters() {
         return parameters;
     }
@@ -114,10 +182,10 @@ public final class InvokeRequest implements Serializable {
     @Override
     public String toString() {
         return MessageFormatter
-                .format("requestID: {}, className: {}, methodName: {}, parameterTypes: {}, parameters: {}",
+                .format("requestID: {}, className: {}, methodName: {}, methodID: {}, parameterTypes: {}, parameters: {}",
                         new Object[] {
-                            requestID, className, methodName, parameterTypes,
-                            parameters
+                            requestID, className, methodName, methodID,
+                            parameterTypes, parameters
                         });
     }
 }
@@ -36,9 +36,9 @@ import easyuse.rpc.util.MessageFormatter;
  * @author dhf
  */
 public final class InvokeResponse implements Serializable {
-    private static final long serialVersionUID = -4770779355986475834L;
+    private static final long serialVersionUID = -7161484741564814166L;
 
-    private String requestID;
+    private long requestID;
 
     private Throwable exception;
 
@@ -46,15 +46,15 @@ public final class InvokeResponse implements Serializable {
 
     public InvokeResponse() {}
 
-    public InvokeResponse(String requestID) {
+    public InvokeResponse(long requestID) {
         this.requestID = requestID;
     }
 
-    public String getRequestID() {
+    public long getRequestID() {
         return requestID;
     }
 
-    public void setRequestID(String requestID) {
+    public void setRequestID(long requestID) {
         this.requestID = requestID;
     }
 
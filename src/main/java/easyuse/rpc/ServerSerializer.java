@@ -33,6 +33,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
+ * serializes the bodies of the frames: the messages are written without any
+ * length header, and the input stream given to decode ends with the message,
+ * see {@link easyuse.rpc.serializer.FrameCodec}
+ * 
  * @author dhf
  */
 public interface ServerSerializer {
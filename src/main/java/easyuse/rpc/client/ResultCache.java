@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.util.ConcurrentLRUCache;
+import easyuse.rpc.util.ReusableByteArrayOutputStream;
+
+/**
+ * the cached results of one method, keyed by the serialized arguments so
+ * that arguments without equals() can be keys and modifying them after the
+ * call does not corrupt the cache. Results are shared by the callers, which
+ * must not modify them.
+ * 
+ * @author dhf
+ */
+public class ResultCache {
+    private static final ThreadLocal<ReusableByteArrayOutputStream> KEYS = new ThreadLocal<ReusableByteArrayOutputStream>() {
+        protected ReusableByteArrayOutputStream initialValue() {
+            return new ReusableByteArrayOutputStream(256, 64 * 1024);
+        };
+    };
+
+    /**
+     * cached null results
+     */
+    private static final Object NULL = new Object();
+
+    private final CachePolicy policy;
+
+    private final long ttlNanos;
+
+    private final ClientSerializer keySerializer;
+
+    private final ConcurrentLRUCache<Key, Entry> results;
+
+    /**
+     * @param policy
+     * @param keySerializer
+     *            serializes the arguments into the keys, must not be
+     *            connection scoped
+     */
+    ResultCache(CachePolicy policy, ClientSerializer keySerializer) {
+        this.policy = policy;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(policy.getTtl());
+        this.keySerializer = keySerializer;
+        this.results = new ConcurrentLRUCache<Key, Entry>(policy
+                .getMaxSize());
+    }
+
+    public CachePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @param request
+     * @return the key of the request, the requestID is not part of it
+     * @throws IOException
+     *             failed to serialize the arguments
+     */
+    Key getKey(InvokeRequest request) throws IOException {
+        InvokeRequest keyRequest = request.isCompact() ? new InvokeRequest(
+                0L, request.getClassName(), request.getMethodID(), request
+                        .getParameters()) : new InvokeRequest(0L, request
+                .getClassName(), request.getMethodName(), request
+                .getParameterTypes(), request.getParameters());
+        ReusableByteArrayOutputStream buffer = KEYS.get();
+        buffer.reset();
+        keySerializer.encodeRequest(buffer, keyRequest);
+        return new Key(buffer.toByteArray());
+    }
+
+    /**
+     * @param key
+     * @return the cached result, null if none or expired
+     */
+    Entry get(Key key) {
+        Entry entry = results.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expires >= 0L) {
+            results.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param key
+     * @param result
+     *            result of a call which threw no exception
+     */
+    void put(Key key, Object result) {
+        results.put(key, new Entry(null == result ? NULL : result, System
+                .nanoTime()
+                + ttlNanos));
+    }
+
+    public void clear() {
+        results.clear();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    public long getHitCount() {
+        return results.getHitCount();
+    }
+
+    public long getMissCount() {
+        return results.getMissCount();
+    }
+
+    @Override
+    public String toString() {
+        return policy + ", " + results;
+    }
+
+    /**
+     * a cached result
+     * 
+     * @author dhf
+     */
+    static class Entry {
+        private final Object result;
+
+        final long expires;
+
+        Entry(Object result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+
+        Object getResult() {
+            return result == NULL ? null : result;
+        }
+    }
+
+    /**
+     * serialized arguments
+     * 
+     * @author dhf
+     */
+    static class Key {
+        private final byte[] bytes;
+
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(bytes, other.bytes);
+        }
+    }
+}
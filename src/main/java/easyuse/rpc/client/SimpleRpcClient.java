@@ -31,17 +31,30 @@ package easyuse.rpc.client;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+import easyuse.rpc.AsyncRpcConnection;
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.ConnectionScopedSerializer;
+import easyuse.rpc.InvokeFuture;
+import easyuse.rpc.InvokeListener;
 import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
 import easyuse.rpc.Logger;
 import easyuse.rpc.RpcClient;
 import easyuse.rpc.RpcConnection;
 import easyuse.rpc.RpcConnectionFactory;
+import easyuse.rpc.metrics.CallRecord;
+import easyuse.rpc.metrics.MethodMetrics;
+import easyuse.rpc.metrics.RpcMetrics;
+import easyuse.rpc.serializer.ProtoStuffSerializer;
 import easyuse.rpc.util.LoggerHolder;
+import easyuse.rpc.util.MethodIDs;
 
 /**
  * @author dhf
@@ -56,7 +69,41 @@ public class SimpleRpcClient implements RpcClient {
 
     private RpcInvoker invoker = new RpcInvoker();
 
-    private AtomicLong requestID = new AtomicLong(0L);
+    private volatile boolean compactMethodIDs = false;
+
+    private volatile RpcMetrics metrics;
+
+    /**
+     * key: interface qualified name + "." + method name
+     */
+    private volatile Map<String, CachePolicy> cachePolicies = Collections
+            .emptyMap();
+
+    private volatile ClientSerializer cacheKeySerializer = ProtoStuffSerializer
+            .getInstance();
+
+    /**
+     * the result caches of the methods called so far, {@link #NO_CACHE} for
+     * the methods without one
+     */
+    private final ConcurrentMap<Method, ResultCache> resultCaches = new ConcurrentHashMap<Method, ResultCache>();
+
+    /**
+     * shared by all clients, so that clients sharing one multiplexed
+     * connection never produce the same requestID
+     */
+    private static final AtomicLong REQUEST_ID = new AtomicLong(0L);
+
+    /**
+     * the parts of the requests which only depend on the method
+     */
+    private static final ConcurrentMap<Method, RequestTemplate> TEMPLATES = new ConcurrentHashMap<Method, RequestTemplate>();
+
+    /**
+     * marks the methods whose results are not cached
+     */
+    private static final ResultCache NO_CACHE = new ResultCache(
+            new CachePolicy(1L, 1), null);
 
     /**
      * @param connection
@@ -78,6 +125,90 @@ public class SimpleRpcClient implements RpcClient {
         this.connectionFactory = factory;
     }
 
+    /**
+     * identify the methods by numeric IDs instead of their names and
+     * parameter types, which shrinks the requests. The IDs are hashes of the
+     * method signatures ({@link MethodIDs}): a method the server does not
+     * have with the same signature fails with a
+     * {@link NoSuchMethodException}.
+     * 
+     * @param compactMethodIDs
+     */
+    public void setCompactMethodIDs(boolean compactMethodIDs) {
+        this.compactMethodIDs = compactMethodIDs;
+    }
+
+    /**
+     * record the calls per method, from sending the request to receiving its
+     * response. Transport failures and exceptions of the remote methods are
+     * counted as errors.
+     * 
+     * @param metrics
+     *            null to record nothing
+     * @see RpcMetrics#registerMBeans()
+     */
+    public void setMetrics(RpcMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * cache the results of idempotent methods, in addition to the methods
+     * annotated {@link Cacheable}, whose annotation the map overrides. Calls
+     * throwing an exception are never cached. Must be set before the methods
+     * are called.
+     * 
+     * @param cachePolicies
+     *            key: interface qualified name + "." + method name, covering
+     *            all the overloads of the method
+     */
+    public void setCachePolicies(Map<String, CachePolicy> cachePolicies) {
+        if (null == cachePolicies) {
+            throw new NullPointerException("cachePolicies");
+        }
+        this.cachePolicies = new HashMap<String, CachePolicy>(cachePolicies);
+        resultCaches.clear();
+    }
+
+    /**
+     * serializes the arguments into the keys of the result caches,
+     * {@link ProtoStuffSerializer} by default
+     * 
+     * @param cacheKeySerializer
+     */
+    public void setCacheKeySerializer(ClientSerializer cacheKeySerializer) {
+        if (null == cacheKeySerializer) {
+            throw new NullPointerException("cacheKeySerializer");
+        }
+        if (cacheKeySerializer instanceof ConnectionScopedSerializer) {
+            throw new IllegalArgumentException(
+                    "connection scoped serializers produce no stable keys: "
+                            + cacheKeySerializer.getClass().getName());
+        }
+        this.cacheKeySerializer = cacheKeySerializer;
+        resultCaches.clear();
+    }
+
+    /**
+     * @param method
+     *            method of the service interface
+     * @return null if the results of the method are not cached
+     */
+    public ResultCache getResultCache(Method method) {
+        ResultCache cache = resultCaches.get(method);
+        if (null == cache) {
+            cache = createResultCache(method);
+            ResultCache old = resultCaches.putIfAbsent(method, cache);
+            if (null != old) {
+                cache = old;
+            }
+        }
+        return cache == NO_CACHE ? null : cache;
+    }
+
     /**
      * get an implementation for the interface
      * 
@@ -97,15 +228,194 @@ public class SimpleRpcClient implements RpcClient {
                 }, invoker);
     }
 
+    /**
+     * invoke the method without blocking if the connection is an
+     * {@link AsyncRpcConnection}, otherwise the returned future is already
+     * completed
+     * 
+     * @param method
+     *            method of the service interface
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public InvokeFuture invokeAsync(Method method, Object... args)
+            throws Throwable {
+        InvokeRequest request = createRequest(method, args);
+        final ResultCache cache = getResultCache(method);
+        final ResultCache.Key key = getCacheKey(cache, request);
+        if (null != key) {
+            ResultCache.Entry entry = cache.get(key);
+            if (null != entry) {
+                InvokeResponse response = new InvokeResponse(request
+                        .getRequestID());
+                response.setResult(entry.getResult());
+                InvokeFuture future = new InvokeFuture(request.getRequestID());
+                future.setResponse(response);
+                return future;
+            }
+        }
+        final MethodMetrics methodMetrics = callStarted(method);
+        final long start = System.nanoTime();
+        final RpcConnection connection;
+        try {
+            connection = getConnection();
+        } catch (Throwable t) {
+            callCompleted(methodMetrics, start, null, t);
+            throw t;
+        }
+        if (connection instanceof AsyncRpcConnection) {
+            InvokeFuture future = null;
+            try {
+                future = ((AsyncRpcConnection) connection)
+                        .sendRequestAsync(request);
+            } catch (Throwable t) {
+                recycle(connection);
+                callCompleted(methodMetrics, start, null, t);
+                throw t;
+            }
+            future.addListener(new InvokeListener() {
+                @Override
+                public void operationComplete(InvokeFuture future) {
+                    recycle(connection);
+                    callCompleted(methodMetrics, start, future.getResponse(),
+                            future.getCause());
+                    cacheResult(cache, key, future.getResponse());
+                }
+            });
+            return future;
+        }
+
+        InvokeFuture future = new InvokeFuture(request.getRequestID());
+        try {
+            future.setResponse(connection.sendRequest(request));
+        } catch (Throwable t) {
+            future.setFailure(t);
+        } finally {
+            recycle(connection);
+        }
+        callCompleted(methodMetrics, start, future.getResponse(),
+                future.getCause());
+        cacheResult(cache, key, future.getResponse());
+        return future;
+    }
+
     public void destroy() throws Throwable {
         if (null != connection) {
             connection.close();
         }
     }
 
-    protected String generateRequestID() {
-        long id = requestID.getAndIncrement();
-        return id + "";
+    protected long generateRequestID() {
+        return REQUEST_ID.getAndIncrement();
+    }
+
+    private InvokeRequest createRequest(Method method, Object[] args) {
+        RequestTemplate template = TEMPLATES.get(method);
+        if (null == template) {
+            template = new RequestTemplate(method);
+            RequestTemplate old = TEMPLATES.putIfAbsent(method, template);
+            if (null != old) {
+                template = old;
+            }
+        }
+
+        long requestID = generateRequestID();
+        if (compactMethodIDs) {
+            return new InvokeRequest(requestID, template.className,
+                    template.methodID, args);
+        }
+        return new InvokeRequest(requestID, template.className,
+                template.methodName, template.parameterTypes, args);
+    }
+
+    /**
+     * @param method
+     * @return null if no metrics are recorded
+     */
+    private MethodMetrics callStarted(Method method) {
+        RpcMetrics callMetrics = metrics;
+        if (null == callMetrics) {
+            return null;
+        }
+        return callMetrics.callStarted(method.getDeclaringClass().getName(),
+                method.getName());
+    }
+
+    /**
+     * @param methodMetrics
+     *            null if no metrics are recorded
+     * @param start
+     * @param response
+     * @param failure
+     *            transport failure of the call
+     */
+    private void callCompleted(MethodMetrics methodMetrics, long start,
+            InvokeResponse response, Throwable failure) {
+        if (null == methodMetrics) {
+            return;
+        }
+        Throwable error = failure;
+        if (null == error && null != response) {
+            error = response.getException();
+        }
+        CallRecord record = CallRecord.ofClientCall(
+                methodMetrics.getService(), methodMetrics.getMethod(),
+                System.nanoTime() - start, error);
+        RpcMetrics callMetrics = metrics;
+        if (null == callMetrics) {
+            // metrics removed while the call was in flight
+            methodMetrics.callCompleted(record);
+        } else {
+            callMetrics.callCompleted(methodMetrics, record);
+        }
+    }
+
+    private ResultCache createResultCache(Method method) {
+        String name = method.getDeclaringClass().getName() + "."
+                + method.getName();
+        CachePolicy policy = cachePolicies.get(name);
+        if (null == policy) {
+            Cacheable cacheable = method.getAnnotation(Cacheable.class);
+            if (null == cacheable) {
+                return NO_CACHE;
+            }
+            policy = new CachePolicy(cacheable.ttl(), cacheable.maxSize());
+        }
+        return new ResultCache(policy, cacheKeySerializer);
+    }
+
+    /**
+     * @param cache
+     *            null if the results of the method are not cached
+     * @param request
+     * @return null if the result of the request is not cached
+     */
+    private ResultCache.Key getCacheKey(ResultCache cache,
+            InvokeRequest request) {
+        if (null == cache) {
+            return null;
+        }
+        try {
+            return cache.getKey(request);
+        } catch (Throwable t) {
+            // the request itself is likely to fail the same way
+            if (logger.isDebugEnabled()) {
+                logger.debug("serialize rpc cache key fail! request: <{}>",
+                        new Object[] {
+                            request
+                        }, t);
+            }
+            return null;
+        }
+    }
+
+    private void cacheResult(ResultCache cache, ResultCache.Key key,
+            InvokeResponse response) {
+        if (null != key && null != response
+                && null == response.getException()) {
+            cache.put(key, response.getResult());
+        }
     }
 
     private RpcConnection getConnection() throws Throwable {
@@ -129,6 +439,33 @@ public class SimpleRpcClient implements RpcClient {
         }
     }
 
+    /**
+     * precomputed description of a method, the parameter types are shared by
+     * the requests and must not be modified
+     * 
+     * @author dhf
+     */
+    private static class RequestTemplate {
+        final String className;
+
+        final String methodName;
+
+        final String[] parameterTypes;
+
+        final int methodID;
+
+        RequestTemplate(Method method) {
+            this.className = method.getDeclaringClass().getName();
+            this.methodName = method.getName();
+            Class<?>[] parameterClasses = method.getParameterTypes();
+            this.parameterTypes = new String[parameterClasses.length];
+            for (int i = 0; i < parameterClasses.length; i++) {
+                this.parameterTypes[i] = parameterClasses[i].getName();
+            }
+            this.methodID = MethodIDs.getMethodID(method);
+        }
+    }
+
     /**
      * rpc proxy invoker
      * 
@@ -138,22 +475,25 @@ public class SimpleRpcClient implements RpcClient {
         @Override
         public Object invoke(Object proxy, Method method, Object[] args)
                 throws Throwable {
-            String className = method.getDeclaringClass().getName();
-            List<String> parameterTypes = new LinkedList<String>();
-            for (Class<?> parameterType: method.getParameterTypes()) {
-                parameterTypes.add(parameterType.getName());
+            InvokeRequest request = createRequest(method, args);
+            ResultCache cache = getResultCache(method);
+            ResultCache.Key key = getCacheKey(cache, request);
+            if (null != key) {
+                ResultCache.Entry entry = cache.get(key);
+                if (null != entry) {
+                    return entry.getResult();
+                }
             }
-
-            String requestID = generateRequestID();
-            InvokeRequest request = new InvokeRequest(requestID, className,
-                    method.getName(), parameterTypes.toArray(new String[0]),
-                    args);
+            MethodMetrics methodMetrics = callStarted(method);
+            long start = System.nanoTime();
             RpcConnection connection = null;
             InvokeResponse response = null;
+            Throwable failure = null;
             try {
                 connection = getConnection();
                 response = connection.sendRequest(request);
             } catch (Throwable t) {
+                failure = t;
                 logger.warn("send rpc request fail! request: <{}>",
                         new Object[] {
                             request
@@ -161,11 +501,13 @@ public class SimpleRpcClient implements RpcClient {
                 throw new RuntimeException(t);
             } finally {
                 recycle(connection);
+                callCompleted(methodMetrics, start, response, failure);
             }
 
             if (response.getException() != null) {
                 throw response.getException();
             } else {
+                cacheResult(cache, key, response);
                 return response.getResult();
             }
         }
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import easyuse.rpc.AsyncRpcConnection;
+import easyuse.rpc.InvokeFuture;
+import easyuse.rpc.InvokeListener;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.Logger;
+import easyuse.rpc.RpcConnection;
+import easyuse.rpc.RpcConnectionFactory;
+import easyuse.rpc.util.LoggerHolder;
+
+/**
+ * balances the calls over the servers of a cluster, every call takes a
+ * connection of the endpoint chosen by the {@link LoadBalancer}.
+ * <p>
+ * An endpoint failing {@link #setMaxFailures(int)} times in a row, to connect
+ * or to answer, is ejected for {@link #setEjectionTime(long)}. After that
+ * one call probes it: the endpoint is back when the call succeeds, ejected
+ * again otherwise. When every endpoint is ejected the calls go to all of
+ * them, rather than failing without trying. Exceptions thrown by the remote
+ * methods are answers, never failures of the endpoint.
+ * </p>
+ * <p>
+ * A connection which can not be taken from an endpoint is taken from the
+ * next one, the call itself is never retried.
+ * </p>
+ * 
+ * @author dhf
+ */
+public class ClusterRpcConnectionFactory implements RpcConnectionFactory {
+    private static final Logger logger = LoggerHolder
+            .getLogger(ClusterRpcConnectionFactory.class);
+
+    public static final int DEFAULT_MAX_FAILURES = 3;
+
+    public static final long DEFAULT_EJECTION_TIME = 10000L;
+
+    private final List<Endpoint> endpoints;
+
+    private final LoadBalancer balancer;
+
+    private volatile int maxFailures = DEFAULT_MAX_FAILURES;
+
+    private volatile long ejectionNanos = TimeUnit.MILLISECONDS
+            .toNanos(DEFAULT_EJECTION_TIME);
+
+    /**
+     * balance with a {@link LeastOutstandingLoadBalancer}
+     * 
+     * @param endpoints
+     */
+    public ClusterRpcConnectionFactory(List<Endpoint> endpoints) {
+        this(endpoints, new LeastOutstandingLoadBalancer());
+    }
+
+    /**
+     * @param endpoints
+     * @param balancer
+     */
+    public ClusterRpcConnectionFactory(List<Endpoint> endpoints,
+            LoadBalancer balancer) {
+        if (null == endpoints || endpoints.size() == 0) {
+            throw new IllegalArgumentException("endpoints not provided");
+        }
+        if (null == balancer) {
+            throw new NullPointerException("balancer");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<Endpoint>(
+                endpoints));
+        this.balancer = balancer;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @param maxFailures
+     *            consecutive failures ejecting an endpoint
+     */
+    public void setMaxFailures(int maxFailures) {
+        if (maxFailures <= 0) {
+            throw new IllegalArgumentException("maxFailures: " + maxFailures);
+        }
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * @param ejectionTime
+     *            milliseconds an ejected endpoint gets no call before it is
+     *            probed
+     */
+    public void setEjectionTime(long ejectionTime) {
+        if (ejectionTime < 0L) {
+            throw new IllegalArgumentException("ejectionTime: "
+                    + ejectionTime);
+        }
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+    }
+
+    @Override
+    public RpcConnection getConnection() throws Throwable {
+        List<Endpoint> tried = null;
+        Throwable failure = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            long now = System.nanoTime();
+            Endpoint endpoint = select(now, tried);
+            RpcConnection connection = null;
+            try {
+                connection = endpoint.getConnectionFactory().getConnection();
+                if (!connection.isConnected()) {
+                    connection.connect();
+                }
+                return new EndpointConnection(endpoint, connection);
+            } catch (Throwable t) {
+                if (null != connection) {
+                    try {
+                        connection.close();
+                    } catch (Throwable ignore) {}
+                }
+                failure = t;
+                if (endpoint.connectFailed(now, maxFailures, ejectionNanos)) {
+                    logger.warn("rpc endpoint ejected! endpoint: <{}>",
+                            new Object[] {
+                                endpoint
+                            }, t);
+                }
+                if (null == tried) {
+                    tried = new ArrayList<Endpoint>(endpoints.size());
+                }
+                tried.add(endpoint);
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    public void recycle(RpcConnection connection) throws Throwable {
+        if (null == connection) {
+            return;
+        }
+        if (!(connection instanceof EndpointConnection)) {
+            throw new IllegalArgumentException(
+                    "connection not taken from the cluster: " + connection);
+        }
+        EndpointConnection endpointConnection = (EndpointConnection) connection;
+        endpointConnection.endpoint.getConnectionFactory().recycle(
+                endpointConnection.connection);
+    }
+
+    /**
+     * @param now
+     * @param tried
+     *            endpoints which failed to give a connection, null if none
+     * @return
+     */
+    private Endpoint select(long now, List<Endpoint> tried) {
+        List<Endpoint> candidates = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get(i);
+            boolean skip = (null != tried && tried.contains(endpoint));
+            if (!skip && endpoint.isEjected()) {
+                if (endpoint.tryProbe(now, ejectionNanos)) {
+                    return endpoint;
+                }
+                skip = true;
+            }
+            if (skip && null == candidates) {
+                // copy the endpoints passed so far
+                candidates = new ArrayList<Endpoint>(endpoints.subList(0, i));
+            } else if (!skip && null != candidates) {
+                candidates.add(endpoint);
+            }
+        }
+        if (null == candidates) {
+            return balancer.select(endpoints);
+        }
+        if (candidates.isEmpty()) {
+            // every endpoint is ejected, try them all anyway
+            for (Endpoint endpoint: endpoints) {
+                if (null == tried || !tried.contains(endpoint)) {
+                    candidates.add(endpoint);
+                }
+            }
+        }
+        return balancer.select(candidates);
+    }
+
+    private void callFailed(Endpoint endpoint, Throwable cause) {
+        if (endpoint.callFailed(System.nanoTime(), maxFailures, ejectionNanos)) {
+            logger.warn("rpc endpoint ejected! endpoint: <{}>", new Object[] {
+                endpoint
+            }, cause);
+        }
+    }
+
+    /**
+     * a connection of an endpoint, feeding the calls back to it. Calls are
+     * sent asynchronously only if the connection of the endpoint supports it.
+     * 
+     * @author dhf
+     */
+    private class EndpointConnection implements AsyncRpcConnection {
+        final Endpoint endpoint;
+
+        final RpcConnection connection;
+
+        EndpointConnection(Endpoint endpoint, RpcConnection connection) {
+            this.endpoint = endpoint;
+            this.connection = connection;
+        }
+
+        @Override
+        public InvokeResponse sendRequest(InvokeRequest request)
+                throws Throwable {
+            endpoint.callStarted();
+            long start = System.nanoTime();
+            InvokeResponse response = null;
+            try {
+                response = connection.sendRequest(request);
+            } catch (Throwable t) {
+                callFailed(endpoint, t);
+                throw t;
+            }
+            endpoint.callSucceeded(System.nanoTime() - start);
+            return response;
+        }
+
+        @Override
+        public InvokeFuture sendRequestAsync(InvokeRequest request)
+                throws Throwable {
+            if (!(connection instanceof AsyncRpcConnection)) {
+                InvokeFuture future = new InvokeFuture(request.getRequestID());
+                try {
+                    future.setResponse(sendRequest(request));
+                } catch (Throwable t) {
+                    future.setFailure(t);
+                }
+                return future;
+            }
+            endpoint.callStarted();
+            final long start = System.nanoTime();
+            InvokeFuture future = null;
+            try {
+                future = ((AsyncRpcConnection) connection)
+                        .sendRequestAsync(request);
+            } catch (Throwable t) {
+                callFailed(endpoint, t);
+                throw t;
+            }
+            future.addListener(new InvokeListener() {
+                @Override
+                public void operationComplete(InvokeFuture future) {
+                    Throwable cause = future.getCause();
+                    if (null == cause) {
+                        endpoint.callSucceeded(System.nanoTime() - start);
+                    } else {
+                        callFailed(endpoint, cause);
+                    }
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public void connect() throws Throwable {
+            connection.connect();
+        }
+
+        @Override
+        public void close() throws Throwable {
+            connection.close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connection.isConnected();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return connection.isClosed();
+        }
+
+        @Override
+        public String toString() {
+            return endpoint.getName() + ": " + connection;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.cluster;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import easyuse.rpc.RpcConnectionFactory;
+
+/**
+ * one server of a cluster: the factory of its connections and the state the
+ * load balancers and the ejection work on, the calls in flight, the moving
+ * average of the call latency and the consecutive failures
+ * 
+ * @author dhf
+ */
+public class Endpoint {
+    /**
+     * weight of a new sample in the moving average of the latency
+     */
+    private static final double LATENCY_DECAY = 0.2;
+
+    private final String name;
+
+    private final RpcConnectionFactory connectionFactory;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicLong latencyNanos = new AtomicLong();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * {@link System#nanoTime()} when the ejected endpoint may be probed, 0 if
+     * the endpoint is not ejected
+     */
+    private final AtomicLong ejectedUntil = new AtomicLong();
+
+    /**
+     * @param name
+     *            identifies the endpoint in logs, e.g. host:port
+     * @param connectionFactory
+     *            connections to the server, usually a
+     *            {@link easyuse.rpc.connection.PoolableRpcConnectionFactory}
+     */
+    public Endpoint(String name, RpcConnectionFactory connectionFactory) {
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+        if (null == connectionFactory) {
+            throw new NullPointerException("connectionFactory");
+        }
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RpcConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    /**
+     * @return calls sent and not answered yet
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return moving average of the call latency, 0 before the first call
+     */
+    public long getLatencyNanos() {
+        return latencyNanos.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return the endpoint is ejected, probing it or not
+     */
+    public boolean isEjected() {
+        return ejectedUntil.get() != 0L;
+    }
+
+    /**
+     * claim the probe of an ejected endpoint whose ejection expired, only one
+     * caller wins the probe of an ejection period
+     * 
+     * @param now
+     *            {@link System#nanoTime()}
+     * @param ejectionNanos
+     *            the next probe if this one does not answer
+     * @return the caller may send the probe
+     */
+    boolean tryProbe(long now, long ejectionNanos) {
+        long until = ejectedUntil.get();
+        if (until == 0L || now - until < 0L) {
+            return false;
+        }
+        return ejectedUntil.compareAndSet(until, now + ejectionNanos);
+    }
+
+    void callStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * @param nanos
+     *            latency of the call
+     */
+    void callSucceeded(long nanos) {
+        outstanding.decrementAndGet();
+        consecutiveFailures.set(0);
+        ejectedUntil.set(0L);
+        while (true) {
+            long average = latencyNanos.get();
+            long update = average == 0L ? nanos : average
+                    + (long) ((nanos - average) * LATENCY_DECAY);
+            if (latencyNanos.compareAndSet(average, update)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param now
+     *            {@link System#nanoTime()}
+     * @param maxFailures
+     *            consecutive failures ejecting the endpoint
+     * @param ejectionNanos
+     * @return the failure ejected the endpoint
+     */
+    boolean callFailed(long now, int maxFailures, long ejectionNanos) {
+        outstanding.decrementAndGet();
+        return connectFailed(now, maxFailures, ejectionNanos);
+    }
+
+    /**
+     * a failure before any call was sent, a refused connection for example
+     * 
+     * @param now
+     * @param maxFailures
+     * @param ejectionNanos
+     * @return the failure ejected the endpoint
+     */
+    boolean connectFailed(long now, int maxFailures, long ejectionNanos) {
+        if (consecutiveFailures.incrementAndGet() < maxFailures) {
+            return false;
+        }
+        long until = now + ejectionNanos;
+        // never 0, which means not ejected
+        ejectedUntil.set(until == 0L ? 1L : until);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name + "(outstanding: " + outstanding.get() + ", latency: "
+                + latencyNanos.get() / 1000L + "us, failures: "
+                + consecutiveFailures.get() + ", ejected: " + isEjected()
+                + ")";
+    }
+}
@@ -30,26 +30,55 @@ package easyuse.rpc.connection;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.SocketFactory;
 
+import easyuse.rpc.AsyncRpcConnection;
 import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.InvokeFuture;
 import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
-import easyuse.rpc.RpcConnection;
+import easyuse.rpc.Logger;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.BufferCache;
+import easyuse.rpc.util.ExecutorUtils;
 import easyuse.rpc.util.IOUtils;
+import easyuse.rpc.util.LoggerHolder;
+import easyuse.rpc.util.SerializerUtils;
 import easyuse.rpc.util.SocketConfig;
 
 /**
- * block io rpc connection
+ * block io rpc connection supporting pipelining: callers write their requests
+ * without waiting for the previous responses, a reader task reads the
+ * responses and routes them back to the callers by requestID.
+ * <p>
+ * The reader runs in a virtual thread when the jvm supports them. Writers are
+ * serialized by a lock instead of a monitor, so that virtual threads calling
+ * the connection are never pinned.
+ * </p>
  * 
  * @author dhf
  */
-public class BIORpcConnection implements RpcConnection {
+public class BIORpcConnection implements AsyncRpcConnection {
+    private static final Logger logger = LoggerHolder
+            .getLogger(BIORpcConnection.class);
+
+    private static final ExecutorService READERS = ExecutorUtils
+            .newVirtualThreadExecutor("eurpc-bio-reader", true);
+
     private InetSocketAddress inetAddr;
 
     private ClientSerializer serializer;
@@ -58,13 +87,30 @@ public class BIORpcConnection implements RpcConnection {
 
     private SocketFactory socketFactory;
 
-    private Socket socket;
-
-    private InputStream in;
+    private volatile Socket socket;
 
     private OutputStream out;
 
-    private boolean connected;
+    /**
+     * frames of the current socket
+     */
+    private FrameCodec socketCodec;
+
+    private final Lock writeLock = new ReentrantLock();
+
+    /**
+     * null to write and flush every request by itself
+     */
+    private BatchPolicy batchPolicy;
+
+    /**
+     * batches the requests of the current socket
+     */
+    private volatile RequestBatcher batcher;
+
+    private final ConcurrentMap<Long, InvokeFuture> inflight = new ConcurrentHashMap<Long, InvokeFuture>();
+
+    private volatile boolean connected;
 
     /**
      * tcpNoDelay: true, keepAlive: true, connectTimeout: infinite, readTimeout:
@@ -123,32 +169,96 @@ public class BIORpcConnection implements RpcConnection {
         this.socketOptions = socketOptions;
     }
 
-    public void connect() throws Throwable {
+    /**
+     * coalesce the requests issued concurrently into batch frames, written
+     * with one flush. Takes effect on the next connect.
+     * 
+     * @param batchPolicy
+     *            null to write and flush every request by itself
+     */
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+    }
+
+    public synchronized void connect() throws Throwable {
         if (connected) {
             return;
         }
+        // release the socket broken by the peer or by an exception
+        closeSocket();
+
+        Socket newSocket = null;
         if (null != socketFactory) {
-            socket = socketFactory.createSocket();
+            newSocket = socketFactory.createSocket();
         } else {
-            socket = new Socket();
+            newSocket = new Socket();
         }
-        IOUtils.setSocketOptions(socket, socketOptions).connect(inetAddr,
+        IOUtils.setSocketOptions(newSocket, socketOptions).connect(inetAddr,
                 socketOptions.getConnectTimeout());
-        in = new BufferedInputStream(socket.getInputStream());
-        out = new BufferedOutputStream(socket.getOutputStream());
+        InputStream in = new BufferedInputStream(newSocket.getInputStream());
+        out = new BufferedOutputStream(newSocket.getOutputStream());
+        ClientSerializer socketSerializer = SerializerUtils
+                .forConnection(serializer);
+        FrameCodec newCodec = new FrameCodec(socketSerializer);
+        socketCodec = newCodec;
+        batcher = createBatcher(newSocket, out, newCodec, SerializerUtils
+                .isConnectionScoped(socketSerializer));
+        socket = newSocket;
         connected = true;
+        READERS.execute(new ResponseReader(newSocket, in, newCodec));
     }
 
-    @Override
-    public void close() throws Throwable {
-        IOUtils.closeQuietly(in);
-        IOUtils.closeQuietly(out);
-        IOUtils.closeQuietly(socket);
+    private RequestBatcher createBatcher(final Socket batchSocket,
+            final OutputStream output, FrameCodec codec, boolean ordered) {
+        if (null == batchPolicy) {
+            return null;
+        }
+        RequestBatcher.Writer writer = new RequestBatcher.Writer() {
+            @Override
+            public void write(byte[] header, byte[] bytes, int offset,
+                    int length) throws IOException {
+                writeLock.lock();
+                try {
+                    if (null != header) {
+                        output.write(header);
+                    }
+                    output.write(bytes, offset, length);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
 
-        in = null;
-        out = null;
-        socket = null;
+            @Override
+            public void flush() throws IOException {
+                writeLock.lock();
+                try {
+                    output.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+
+            @Override
+            public void writeFailed(Throwable cause) {
+                logger.warn("write rpc requests fail! server: <{}>",
+                        new Object[] {
+                            inetAddr
+                        }, cause);
+                if (batchSocket == socket) {
+                    try {
+                        close();
+                    } catch (Throwable ignore) {}
+                }
+            }
+        };
+        return new RequestBatcher(codec, ordered, writer, batchPolicy);
+    }
+
+    @Override
+    public synchronized void close() throws Throwable {
         connected = false;
+        closeSocket();
+        failPendingRequests(new IOException("connection closed"));
     }
 
     @Override
@@ -158,19 +268,155 @@ public class BIORpcConnection implements RpcConnection {
 
     @Override
     public boolean isClosed() {
-        return (null == socket) || !socket.isConnected() || socket.isClosed()
-                || socket.isInputShutdown() || socket.isOutputShutdown();
+        Socket s = socket;
+        return (null == s) || !s.isConnected() || s.isClosed()
+                || s.isInputShutdown() || s.isOutputShutdown();
+    }
+
+    /**
+     * number of requests waiting for response
+     * 
+     * @return
+     */
+    public int getPendingRequests() {
+        return inflight.size();
     }
 
     @Override
     public InvokeResponse sendRequest(InvokeRequest request) throws Throwable {
+        InvokeFuture future = sendRequestAsync(request);
+        try {
+            return future.awaitResponse();
+        } finally {
+            inflight.remove(future.getRequestID(), future);
+        }
+    }
+
+    @Override
+    public InvokeFuture sendRequestAsync(InvokeRequest request)
+            throws Throwable {
         if (!isConnected()) {
             throw new IllegalStateException("not connected");
         }
-        serializer.encodeRequest(out, request);
-        out.flush();
-        InvokeResponse response = serializer.decodeResponse(in);
-        return response;
+        long requestID = request.getRequestID();
+        InvokeFuture future = new InvokeFuture(requestID);
+        if (null != inflight.putIfAbsent(requestID, future)) {
+            throw new IllegalStateException("duplicated requestID: "
+                    + requestID);
+        }
+        RequestBatcher currentBatcher = batcher;
+        if (null != currentBatcher) {
+            try {
+                currentBatcher.submit(request);
+            } catch (Throwable t) {
+                inflight.remove(requestID);
+                if (currentBatcher.isOrdered()) {
+                    // the serializer state may be corrupted
+                    close();
+                }
+                throw t;
+            }
+            return future;
+        }
+        writeLock.lock();
+        try {
+            OutputStream output = out;
+            if (null == output) {
+                throw new IllegalStateException("not connected");
+            }
+            socketCodec.writeRequest(output, request);
+            output.flush();
+        } catch (Throwable t) {
+            inflight.remove(requestID);
+            // the stream may be corrupted by a partially written request
+            close();
+            throw t;
+        } finally {
+            writeLock.unlock();
+        }
+        return future;
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (null == s) {
+            return;
+        }
+        socket = null;
+        IOUtils.closeQuietly(out);
+        IOUtils.closeQuietly(s);
+        out = null;
     }
 
+    private void failPendingRequests(Throwable cause) {
+        Iterator<InvokeFuture> it = inflight.values().iterator();
+        while (it.hasNext()) {
+            InvokeFuture future = it.next();
+            it.remove();
+            future.setFailure(cause);
+        }
+    }
+
+    /**
+     * reads the responses of one socket until it is closed
+     * 
+     * @author dhf
+     */
+    private class ResponseReader implements Runnable {
+        private final Socket readSocket;
+
+        private final InputStream in;
+
+        private final FrameCodec readCodec;
+
+        ResponseReader(Socket readSocket, InputStream in, FrameCodec readCodec) {
+            this.readSocket = readSocket;
+            this.in = in;
+            this.readCodec = readCodec;
+        }
+
+        @Override
+        public void run() {
+            Throwable cause = null;
+            try {
+                while (readSocket == socket) {
+                    List<InvokeResponse> responses = null;
+                    try {
+                        responses = readCodec.readResponses(in);
+                    } catch (SocketTimeoutException e) {
+                        if (inflight.isEmpty()) {
+                            // idle connection
+                            continue;
+                        }
+                        throw e;
+                    }
+                    for (InvokeResponse response: responses) {
+                        receive(response);
+                    }
+                }
+            } catch (Throwable t) {
+                cause = t;
+            } finally {
+                IOUtils.closeQuietly(in);
+                BufferCache.release();
+                if (readSocket == socket) {
+                    connected = false;
+                    failPendingRequests(null == cause ? new IOException(
+                            "connection closed") : cause);
+                }
+            }
+        }
+
+        private void receive(InvokeResponse response) {
+            InvokeFuture future = inflight.remove(response.getRequestID());
+            if (null == future) {
+                logger.warn("no pending request for the response: <{}>",
+                        new Object[] {
+                            response
+                        });
+                return;
+            }
+            future.setResponse(response);
+        }
+    }
 }
@@ -45,6 +45,8 @@ public class BIORpcConnectionFactory implements RpcConnectionFactory {
 
     private SocketConfig socketOptions;
 
+    private BatchPolicy batchPolicy;
+
     /**
      * tcpNoDelay: true, keepAlive: true, connectTimeout: infinite, readTimeout:
      * infinite
@@ -94,10 +96,23 @@ public class BIORpcConnectionFactory implements RpcConnectionFactory {
         this.socketOptions = socketOptions;
     }
 
+    /**
+     * @param batchPolicy
+     *            batches the requests of the connections, null to write and
+     *            flush every request by itself
+     * @see BIORpcConnection#setBatchPolicy(BatchPolicy)
+     */
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+    }
+
     @Override
     public RpcConnection getConnection() throws Throwable {
-        return new BIORpcConnection(this.serverAddr.getHostName(),
-                this.serverAddr.getPort(), this.serializer, this.socketOptions);
+        BIORpcConnection connection = new BIORpcConnection(this.serverAddr
+                .getHostName(), this.serverAddr.getPort(), this.serializer,
+                this.socketOptions);
+        connection.setBatchPolicy(this.batchPolicy);
+        return connection;
     }
 
     @Override
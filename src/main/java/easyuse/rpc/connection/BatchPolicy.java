@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.connection;
+
+/**
+ * how the concurrent requests of a connection are coalesced into batch
+ * frames
+ * 
+ * @author dhf
+ */
+public class BatchPolicy {
+    public static final int DEFAULT_MAX_COUNT = 64;
+
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final int maxCount;
+
+    private final int maxBytes;
+
+    private final long lingerMicros;
+
+    /**
+     * {@link #DEFAULT_MAX_COUNT} requests or {@link #DEFAULT_MAX_BYTES} bytes
+     * per batch, no linger
+     */
+    public BatchPolicy() {
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES, 0L);
+    }
+
+    /**
+     * @param maxCount
+     *            max number of requests in a batch
+     * @param maxBytes
+     *            max length of a batch, a larger request is sent alone
+     * @param lingerMicros
+     *            microseconds a request waits for others to join its batch,
+     *            0 to send at once: the requests issued while the previous
+     *            batch is written join the next one
+     */
+    public BatchPolicy(int maxCount, int maxBytes, long lingerMicros) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount: " + maxCount);
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        if (lingerMicros < 0L) {
+            throw new IllegalArgumentException("lingerMicros: "
+                    + lingerMicros);
+        }
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.lingerMicros = lingerMicros;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getLingerMicros() {
+        return lingerMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "maxCount: " + maxCount + ", maxBytes: " + maxBytes
+                + ", linger: " + lingerMicros + "us";
+    }
+}
@@ -28,9 +28,11 @@
  ******************************************************************************/
 package easyuse.rpc.connection;
 
-import java.io.ByteArrayOutputStream;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
@@ -39,24 +41,79 @@ import org.jboss.netty.channel.SimpleChannelHandler;
 
 import easyuse.rpc.ClientSerializer;
 import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.FrameHeader;
+import easyuse.rpc.util.SerializerUtils;
 
 /**
+ * serializes the message straight into a dynamic channel buffer, sized by the
+ * length of the previous message; the frame header is filled in front of the
+ * body once its length is known. With a connection scoped serializer, the
+ * messages are serialized and written under a lock, so that they reach the
+ * wire in the order they were serialized.
+ * <p>
+ * Channel buffers, frames already encoded by a {@link RequestBatcher}, are
+ * passed through.
+ * </p>
+ * 
  * @author dhf
  */
 public class InvokeRequestEncoder extends SimpleChannelHandler {
-    private final ClientSerializer serializer;
+    private static final int MIN_ESTIMATED_LENGTH = 256;
+
+    private final FrameCodec codec;
+
+    private volatile int estimatedLength = MIN_ESTIMATED_LENGTH;
+
+    /**
+     * null if the serializer keeps no state
+     */
+    private final Lock writeLock;
 
+    /**
+     * @param serializer
+     *            serializer of the channel, a connection scoped serializer
+     *            must not be shared with other channels
+     */
     public InvokeRequestEncoder(ClientSerializer serializer) {
-        this.serializer = serializer;
+        this.codec = new FrameCodec(serializer);
+        this.writeLock = SerializerUtils.isConnectionScoped(serializer)
+                ? new ReentrantLock() : null;
     }
 
     @Override
     public void writeRequested(ChannelHandlerContext ctx, MessageEvent e)
             throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            ctx.sendDownstream(e);
+            return;
+        }
+        if (null == writeLock) {
+            encodeAndWrite(ctx, e);
+            return;
+        }
+        writeLock.lock();
+        try {
+            encodeAndWrite(ctx, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void encodeAndWrite(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
         InvokeRequest request = (InvokeRequest) e.getMessage();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
-        serializer.encodeRequest(baos, request);
-        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(baos.toByteArray());
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(estimatedLength,
+                ctx.getChannel().getConfig().getBufferFactory());
+        buffer.writerIndex(FrameHeader.LENGTH);
+        byte flags = codec.encodeBody(new ChannelBufferOutputStream(buffer),
+                request);
+        FrameHeader header = new FrameHeader(FrameHeader.TYPE_REQUEST, flags,
+                codec.getSerializerID(), request.getRequestID(),
+                buffer.writerIndex() - FrameHeader.LENGTH);
+        buffer.setBytes(0, header.toBytes());
+        estimatedLength = Math.max(MIN_ESTIMATED_LENGTH,
+                buffer.readableBytes());
         Channels.write(ctx, e.getFuture(), buffer);
     }
 }
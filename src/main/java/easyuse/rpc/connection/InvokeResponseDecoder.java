@@ -28,50 +28,98 @@
  ******************************************************************************/
 package easyuse.rpc.connection;
 
+import java.util.List;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
-import easyuse.rpc.ClientSerializer;
 import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.serializer.Batch;
+import easyuse.rpc.serializer.Frame;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.FrameHeader;
+import easyuse.rpc.util.SerializerUtils;
 
 /**
+ * decodes the frames described by {@link FrameHeader}, the header is parsed
+ * in place and only the body is passed to the serializer. Frames of other
+ * types than responses are skipped.
  * <p>
- * Format:
- * 
- * <pre>
- *  +---------------------------+-----------+
- *  |  content length(4 bytes)  |  content  |
- *  +---------------------------+-----------+
- * </pre>
- * 
- * <strong> Warning:</strong> the content length header will also pass to the
- * serializer
+ * With deferred bodies, the decoder only copies the body out of the
+ * cumulation buffer and passes a {@link Frame} up, to be deserialized in
+ * another thread. The bodies of a connection scoped serializer are always
+ * deserialized in place, since they depend on the previous ones.
+ * </p>
+ * <p>
+ * The messages, or {@link Frame}s, of a batch are passed up together in a
+ * {@link Batch}.
  * </p>
  * 
  * @author dhf
  */
 public class InvokeResponseDecoder extends FrameDecoder {
-    private final ClientSerializer serializer;
+    private final FrameCodec codec;
+
+    private final boolean deferBodies;
 
     public InvokeResponseDecoder(ClientSerializer serializer) {
-        this.serializer = serializer;
+        this(serializer, false);
+    }
+
+    /**
+     * @param serializer
+     * @param deferBodies
+     *            pass {@link Frame}s up instead of deserialized responses
+     */
+    public InvokeResponseDecoder(ClientSerializer serializer,
+            boolean deferBodies) {
+        this.codec = new FrameCodec(serializer);
+        this.deferBodies = deferBodies
+                && !SerializerUtils.isConnectionScoped(serializer);
     }
 
     @Override
     protected Object decode(ChannelHandlerContext context, Channel channel,
             ChannelBuffer buffer) throws Exception {
-        if (buffer.readableBytes() < 4) {
-            return null;
-        }
-        int length = buffer.getInt(buffer.readerIndex());
-        if (buffer.readableBytes() < length + 4) {
-            return null;
+        while (buffer.readableBytes() >= FrameHeader.LENGTH) {
+            int frameStart = buffer.readerIndex();
+            // fail fast on garbage instead of waiting for a bogus length
+            FrameHeader.checkMagic(buffer.getShort(frameStart));
+            int bodyLength = buffer.getInt(frameStart
+                    + FrameHeader.BODY_LENGTH_OFFSET);
+            if (buffer.readableBytes() < FrameHeader.LENGTH + bodyLength) {
+                return null;
+            }
+            FrameHeader header = FrameHeader.read(new ChannelBufferInputStream(
+                    buffer, FrameHeader.LENGTH));
+            int frameEnd = buffer.readerIndex() + bodyLength;
+            if (header.getType() == FrameHeader.TYPE_RESPONSE_BATCH) {
+                List<Object> messages = codec.decodeBatch(header,
+                        new ChannelBufferInputStream(buffer, bodyLength),
+                        deferBodies);
+                buffer.readerIndex(frameEnd);
+                return new Batch<Object>(messages);
+            }
+            if (header.getType() != FrameHeader.TYPE_RESPONSE) {
+                // heartbeats, or frames this version does not know
+                buffer.readerIndex(frameEnd);
+                continue;
+            }
+            if (deferBodies) {
+                byte[] body = new byte[bodyLength];
+                buffer.readBytes(body);
+                return new Frame(codec, header, body);
+            }
+            // read the body in place, the stream never goes beyond it
+            Object message = codec.decodeBody(header,
+                    new ChannelBufferInputStream(buffer, bodyLength));
+            buffer.readerIndex(frameEnd);
+            return message;
         }
-        ChannelBufferInputStream in = new ChannelBufferInputStream(buffer);
-        InvokeResponse response = serializer.decodeResponse(in);
-        return response;
+        return null;
     }
 }
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.connection;
+
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import easyuse.rpc.util.NamedThreadFactory;
+
+/**
+ * the channel factory (boss and worker threads) and the timer shared by
+ * netty client connections, so that opening a connection creates no thread
+ * 
+ * @author dhf
+ */
+public class NettyClientRuntime {
+    private static class DefaultHolder {
+        private static final NettyClientRuntime INSTANCE = new NettyClientRuntime();
+    }
+
+    private final ChannelFactory channelFactory;
+
+    private final Timer timer;
+
+    /**
+     * worker count: twice the number of available processors
+     */
+    public NettyClientRuntime() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param workerCount
+     *            number of io worker threads
+     */
+    public NettyClientRuntime(int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount: " + workerCount);
+        }
+        this.channelFactory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(new NamedThreadFactory(
+                        "eurpc-client-boss", true)),
+                Executors.newCachedThreadPool(new NamedThreadFactory(
+                        "eurpc-client-worker", true)), workerCount);
+        this.timer = new HashedWheelTimer(new NamedThreadFactory(
+                "eurpc-client-timer", true));
+    }
+
+    /**
+     * the runtime shared by all connections not given their own, its threads
+     * are daemon threads and live as long as the jvm
+     * 
+     * @return
+     */
+    public static NettyClientRuntime getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    public ChannelFactory getChannelFactory() {
+        return channelFactory;
+    }
+
+    public Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * stop the timer and the io threads, connections using this runtime must
+     * be closed before
+     */
+    public void releaseExternalResources() {
+        if (this == getDefault()) {
+            throw new IllegalStateException(
+                    "the default runtime can not be released");
+        }
+        timer.stop();
+        channelFactory.releaseExternalResources();
+    }
+}
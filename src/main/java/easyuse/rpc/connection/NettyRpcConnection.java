@@ -30,36 +30,65 @@ package easyuse.rpc.connection;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.timeout.ReadTimeoutHandler;
-import org.jboss.netty.util.HashedWheelTimer;
-import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
+import easyuse.rpc.AsyncRpcConnection;
 import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.InvokeFuture;
+import easyuse.rpc.InvokeListener;
 import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
-import easyuse.rpc.RpcConnection;
+import easyuse.rpc.Logger;
+import easyuse.rpc.serializer.Batch;
+import easyuse.rpc.serializer.Frame;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.LoggerHolder;
+import easyuse.rpc.util.SerializerUtils;
 import easyuse.rpc.util.SocketConfig;
 
 /**
+ * a multiplexed rpc connection, it is safe to share one connection between
+ * threads: every request is registered in the in-flight table by its
+ * requestID, and the response is routed back to the caller waiting for it.
+ * <p>
+ * <strong>Note:</strong> requestIDs must be unique among the requests in
+ * flight on one connection
+ * </p>
+ * <p>
+ * With a read timeout, a request not answered in time fails with a
+ * {@link SocketTimeoutException}, whatever the other traffic of the channel.
+ * </p>
+ * 
  * @author dhf
  */
 public class NettyRpcConnection extends SimpleChannelHandler implements
-        RpcConnection {
+        AsyncRpcConnection {
+    private static final Logger logger = LoggerHolder
+            .getLogger(NettyRpcConnection.class);
 
     private InetSocketAddress inetAddr;
 
@@ -67,15 +96,28 @@ public class NettyRpcConnection extends SimpleChannelHandler implements
 
     private volatile Channel channel;
 
-    private volatile InvokeResponse response;
-
-    private volatile Throwable exception;
+    private final ConcurrentMap<Long, InvokeFuture> inflight = new ConcurrentHashMap<Long, InvokeFuture>();
 
-    private volatile Timer timer;
+    private NettyClientRuntime runtime;
 
     private SocketConfig socketOptions;
 
-    private boolean connected;
+    private volatile boolean connected;
+
+    /**
+     * deserializes the responses, null to deserialize them in the io threads
+     */
+    private Executor decodeExecutor;
+
+    /**
+     * null to write every request in its own frame
+     */
+    private BatchPolicy batchPolicy;
+
+    /**
+     * batches the requests of the current channel
+     */
+    private volatile RequestBatcher batcher;
 
     /**
      * tcpNoDelay: true, keepAlive: true, connectTimeout: infinite, readTimeout:
@@ -105,48 +147,108 @@ public class NettyRpcConnection extends SimpleChannelHandler implements
                 .setReadTimeout((int) readTimeout));
     }
 
+    /**
+     * use the default {@link NettyClientRuntime}
+     * 
+     * @param host
+     * @param port
+     * @param serializer
+     * @param socketOptions
+     */
     public NettyRpcConnection(String host, int port,
             ClientSerializer serializer, SocketConfig socketOptions) {
+        this(host, port, serializer, socketOptions, null);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param serializer
+     * @param socketOptions
+     * @param runtime
+     *            io threads and timer, the default runtime if null
+     */
+    public NettyRpcConnection(String host, int port,
+            ClientSerializer serializer, SocketConfig socketOptions,
+            NettyClientRuntime runtime) {
         if (null == serializer) {
             throw new NullPointerException("serializer");
         }
         if (null == socketOptions) {
             socketOptions = new SocketConfig();
         }
+        if (null == runtime) {
+            runtime = NettyClientRuntime.getDefault();
+        }
 
         this.inetAddr = new InetSocketAddress(host, port);
         this.serializer = serializer;
         this.socketOptions = socketOptions;
-        this.timer = new HashedWheelTimer();
+        this.runtime = runtime;
     }
 
     public void setSocketOptions(SocketConfig socketOptions) {
         this.socketOptions = socketOptions;
     }
 
-    public void connect() throws Throwable {
+    /**
+     * deserialize the responses in the executor instead of the io threads, so
+     * that large responses do not hold up the other connections of an io
+     * thread. Responses are routed by the frame header, those nobody waits
+     * for any more are dropped without deserializing them. Responses rejected
+     * by the executor are deserialized in the io thread. Connection scoped
+     * serializers always deserialize in the io thread. Takes effect on the
+     * next connect.
+     * 
+     * @param decodeExecutor
+     *            null to deserialize in the io threads
+     */
+    public void setDecodeExecutor(Executor decodeExecutor) {
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    /**
+     * coalesce the requests issued concurrently into batch frames, takes
+     * effect on the next connect
+     * 
+     * @param batchPolicy
+     *            null to write every request in its own frame
+     */
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+    }
+
+    public synchronized void connect() throws Throwable {
         if (connected) {
             return;
         }
-        ChannelFactory factory = new NioClientSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool());
-        ClientBootstrap bootstrap = new ClientBootstrap(factory);
+        Channel broken = channel;
+        if (null != broken) {
+            // closed by the peer or by an exception
+            channel = null;
+            broken.close();
+        }
+        ClientBootstrap bootstrap = new ClientBootstrap(
+                runtime.getChannelFactory());
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             public ChannelPipeline getPipeline() {
                 ChannelPipeline pipeline = Channels.pipeline();
 
                 int readTimeout = socketOptions.getReadTimeout();
                 if (readTimeout > 0) {
-                    pipeline.addLast("timeout", new ReadTimeoutHandler(timer,
+                    pipeline.addLast("timeout", new ReadTimeoutHandler(runtime
+                            .getTimer(),
                             readTimeout, TimeUnit.MILLISECONDS));
                 }
 
+                ClientSerializer channelSerializer = SerializerUtils
+                        .forConnection(serializer);
                 pipeline.addLast("decoder", new InvokeResponseDecoder(
-                        serializer));
-                pipeline.addLast("encoder",
-                        new InvokeRequestEncoder(serializer));
+                        channelSerializer, null != decodeExecutor));
+                pipeline.addLast("encoder", new InvokeRequestEncoder(
+                        channelSerializer));
                 pipeline.addLast("handler", NettyRpcConnection.this);
+                batcher = createBatcher(channelSerializer, pipeline);
                 return pipeline;
             }
         });
@@ -156,13 +258,45 @@ public class NettyRpcConnection extends SimpleChannelHandler implements
         }
         ChannelFuture channelFuture = bootstrap.connect(inetAddr);
         if (!channelFuture.awaitUninterruptibly().isSuccess()) {
-            bootstrap.releaseExternalResources();
             throw channelFuture.getCause();
         }
         channel = channelFuture.getChannel();
         connected = true;
     }
 
+    private RequestBatcher createBatcher(ClientSerializer channelSerializer,
+            final ChannelPipeline pipeline) {
+        if (null == batchPolicy) {
+            return null;
+        }
+        RequestBatcher.Writer writer = new RequestBatcher.Writer() {
+            @Override
+            public void write(byte[] header, byte[] bytes, int offset,
+                    int length) {
+                // the bytes are reused by the batcher
+                ChannelBuffer buffer = ChannelBuffers.buffer(length
+                        + (null == header ? 0 : header.length));
+                if (null != header) {
+                    buffer.writeBytes(header);
+                }
+                buffer.writeBytes(bytes, offset, length);
+                pipeline.getChannel().write(buffer).addListener(
+                        ChannelFutureListener.CLOSE_ON_FAILURE);
+            }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void writeFailed(Throwable cause) {
+                pipeline.getChannel().close();
+            }
+        };
+        return new RequestBatcher(new FrameCodec(channelSerializer),
+                SerializerUtils.isConnectionScoped(channelSerializer), writer,
+                batchPolicy);
+    }
+
     @Override
     public boolean isConnected() {
         return connected;
@@ -170,76 +304,213 @@ public class NettyRpcConnection extends SimpleChannelHandler implements
 
     @Override
     public boolean isClosed() {
-        return (null == channel) || !channel.isConnected()
-                || !channel.isReadable() || !channel.isWritable();
+        Channel ch = channel;
+        return (null == ch) || !ch.isConnected() || !ch.isReadable()
+                || !ch.isWritable();
+    }
+
+    /**
+     * number of requests waiting for response
+     * 
+     * @return
+     */
+    public int getPendingRequests() {
+        return inflight.size();
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
             throws Exception {
-        exception = e.getCause();
-        synchronized (channel) {
-            channel.notifyAll();
+        if (isCurrent(e.getChannel())) {
+            connected = false;
+            failPendingRequests(e.getCause());
         }
+        // never wait for the close future in the io thread
+        e.getChannel().close();
     }
 
-    public void waitForResponse() {
-        synchronized (channel) {
-            try {
-                channel.wait();
-            } catch (InterruptedException e) {}
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        if (isCurrent(e.getChannel())) {
+            connected = false;
+            failPendingRequests(new IOException("connection closed"));
         }
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * the handler serves every channel of the connection, the late events of
+     * a replaced channel must not touch the requests of the new one
+     * 
+     * @param ch
+     * @return
+     */
+    private boolean isCurrent(Channel ch) {
+        Channel current = channel;
+        // no current channel while connecting or after close
+        return null == current || current == ch;
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
             throws Exception {
-        response = (InvokeResponse) e.getMessage();
-        synchronized (channel) {
-            channel.notifyAll();
+        Object msg = e.getMessage();
+        if (msg instanceof Batch) {
+            for (Object member: ((Batch<?>) msg).getMessages()) {
+                receive(member);
+            }
+            return;
+        }
+        receive(msg);
+    }
+
+    private void receive(Object msg) {
+        if (msg instanceof Frame) {
+            receive((Frame) msg);
+            return;
+        }
+        InvokeResponse response = (InvokeResponse) msg;
+        InvokeFuture future = inflight.remove(response.getRequestID());
+        if (null == future) {
+            logger.warn("no pending request for the response: <{}>",
+                    new Object[] {
+                        response
+                    });
+            return;
+        }
+        future.setResponse(response);
+    }
+
+    private void receive(final Frame frame) {
+        final InvokeFuture future = inflight.remove(frame.getRequestID());
+        if (null == future) {
+            logger.warn("no pending request for the response: <{}>",
+                    new Object[] {
+                        frame
+                    });
+            return;
+        }
+        Runnable decode = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.setResponse((InvokeResponse) frame.decode());
+                } catch (Throwable t) {
+                    future.setFailure(t);
+                }
+            }
+        };
+        Executor executor = decodeExecutor;
+        if (null == executor) {
+            decode.run();
+            return;
+        }
+        try {
+            executor.execute(decode);
+        } catch (RejectedExecutionException ree) {
+            decode.run();
         }
     }
 
     @Override
     public InvokeResponse sendRequest(InvokeRequest request) throws Throwable {
-        if (!isConnected()) {
+        InvokeFuture future = sendRequestAsync(request);
+        try {
+            return future.awaitResponse();
+        } finally {
+            inflight.remove(future.getRequestID(), future);
+        }
+    }
+
+    @Override
+    public InvokeFuture sendRequestAsync(InvokeRequest request)
+            throws Throwable {
+        Channel ch = channel;
+        if (!isConnected() || null == ch) {
             throw new IllegalStateException("not connected");
         }
-        ChannelFuture writeFuture = channel.write(request);
-        if (!writeFuture.awaitUninterruptibly().isSuccess()) {
-            close();
-            throw writeFuture.getCause();
+        final long requestID = request.getRequestID();
+        final InvokeFuture future = new InvokeFuture(requestID);
+        if (null != inflight.putIfAbsent(requestID, future)) {
+            throw new IllegalStateException("duplicated requestID: "
+                    + requestID);
         }
-        waitForResponse();
-
-        Throwable ex = exception;
-        InvokeResponse resp = this.response;
-        this.response = null;
-        this.exception = null;
+        scheduleTimeout(future);
+        RequestBatcher currentBatcher = batcher;
+        if (null != currentBatcher) {
+            try {
+                currentBatcher.submit(request);
+            } catch (Throwable t) {
+                inflight.remove(requestID);
+                if (currentBatcher.isOrdered()) {
+                    // the serializer state may be corrupted
+                    ch.close();
+                }
+                throw t;
+            }
+            return future;
+        }
+        ch.write(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture writeFuture)
+                    throws Exception {
+                if (!writeFuture.isSuccess()) {
+                    inflight.remove(requestID);
+                    future.setFailure(writeFuture.getCause());
+                }
+            }
+        });
+        return future;
+    }
 
-        if (null != ex) {
-            close();
-            throw ex;
+    /**
+     * fail the request if not answered in the read timeout, the responses of
+     * other requests keep the channel from timing out
+     * 
+     * @param future
+     */
+    private void scheduleTimeout(final InvokeFuture future) {
+        final int readTimeout = socketOptions.getReadTimeout();
+        if (readTimeout <= 0) {
+            return;
         }
-        return resp;
+        final Timeout timeout = runtime.getTimer().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                if (inflight.remove(future.getRequestID(), future)) {
+                    future.setFailure(new SocketTimeoutException(
+                            "no response in " + readTimeout
+                                    + "ms, requestID: "
+                                    + future.getRequestID()));
+                }
+            }
+        }, readTimeout, TimeUnit.MILLISECONDS);
+        future.addListener(new InvokeListener() {
+            @Override
+            public void operationComplete(InvokeFuture completed) {
+                timeout.cancel();
+            }
+        });
     }
 
     @Override
     public void close() throws Throwable {
         connected = false;
-        if (null != timer) {
-            timer.stop();
-            timer = null;
+        Channel ch = channel;
+        if (null != ch) {
+            channel = null;
+            ch.close().awaitUninterruptibly();
         }
-        if (null != channel) {
-            channel.close().awaitUninterruptibly();
-            channel.getFactory().releaseExternalResources();
+        failPendingRequests(new IOException("connection closed"));
+    }
 
-            this.exception = new IOException("connection closed");
-            synchronized (channel) {
-                channel.notifyAll();
-            }
-            channel = null;
+    private void failPendingRequests(Throwable cause) {
+        Iterator<InvokeFuture> it = inflight.values().iterator();
+        while (it.hasNext()) {
+            InvokeFuture future = it.next();
+            it.remove();
+            future.setFailure(cause);
         }
     }
 }
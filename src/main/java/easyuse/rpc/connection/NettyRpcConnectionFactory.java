@@ -29,6 +29,7 @@
 package easyuse.rpc.connection;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 
 import easyuse.rpc.ClientSerializer;
 import easyuse.rpc.RpcConnection;
@@ -36,6 +37,8 @@ import easyuse.rpc.RpcConnectionFactory;
 import easyuse.rpc.util.SocketConfig;
 
 /**
+ * all connections created by the factory share one {@link NettyClientRuntime}
+ * 
  * @author dhf
  */
 public class NettyRpcConnectionFactory implements RpcConnectionFactory {
@@ -45,6 +48,12 @@ public class NettyRpcConnectionFactory implements RpcConnectionFactory {
 
     private SocketConfig socketOptions;
 
+    private NettyClientRuntime runtime;
+
+    private Executor decodeExecutor;
+
+    private BatchPolicy batchPolicy;
+
     /**
      * tcpNoDelay: true, keepAlive: true, connectTimeout: infinite, readTimeout:
      * infinite
@@ -74,24 +83,74 @@ public class NettyRpcConnectionFactory implements RpcConnectionFactory {
                 .setReadTimeout((int) readTimeout));
     }
 
+    /**
+     * use the default {@link NettyClientRuntime}
+     * 
+     * @param host
+     * @param port
+     * @param serializer
+     * @param socketOptions
+     */
     public NettyRpcConnectionFactory(String host, int port,
             ClientSerializer serializer, SocketConfig socketOptions) {
+        this(host, port, serializer, socketOptions, null);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param serializer
+     * @param socketOptions
+     * @param runtime
+     *            io threads and timer, the default runtime if null
+     */
+    public NettyRpcConnectionFactory(String host, int port,
+            ClientSerializer serializer, SocketConfig socketOptions,
+            NettyClientRuntime runtime) {
         if (null == serializer) {
             throw new NullPointerException("serializer");
         }
         if (null == socketOptions) {
             socketOptions = new SocketConfig();
         }
+        if (null == runtime) {
+            runtime = NettyClientRuntime.getDefault();
+        }
 
         this.serverAddr = new InetSocketAddress(host, port);
         this.serializer = serializer;
         this.socketOptions = socketOptions;
+        this.runtime = runtime;
+    }
+
+    /**
+     * @param decodeExecutor
+     *            deserializes the responses of the connections, null to
+     *            deserialize them in the io threads
+     * @see NettyRpcConnection#setDecodeExecutor(Executor)
+     */
+    public void setDecodeExecutor(Executor decodeExecutor) {
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    /**
+     * @param batchPolicy
+     *            batches the requests of the connections, null to write every
+     *            request in its own frame
+     * @see NettyRpcConnection#setBatchPolicy(BatchPolicy)
+     */
+    public void setBatchPolicy(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
     }
 
     @Override
     public RpcConnection getConnection() throws Throwable {
-        return new NettyRpcConnection(this.serverAddr.getHostName(),
-                this.serverAddr.getPort(), this.serializer, this.socketOptions);
+        NettyRpcConnection connection = new NettyRpcConnection(
+                this.serverAddr.getHostName(), this.serverAddr.getPort(),
+                this.serializer, this.socketOptions, this.runtime);
+        connection.setDecodeExecutor(this.decodeExecutor);
+        connection.setBatchPolicy(this.batchPolicy);
+        return connection;
     }
 
     @Override
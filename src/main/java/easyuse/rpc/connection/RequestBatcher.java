@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.connection;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.BufferCache;
+import easyuse.rpc.util.FrameHeader;
+import easyuse.rpc.util.NamedThreadFactory;
+import easyuse.rpc.util.ReusableByteArrayOutputStream;
+
+/**
+ * coalesces the requests of one connection into batch frames. Callers encode
+ * their requests and append the frames to the pending batch; one of them at a
+ * time writes it, while the requests issued meanwhile gather in the next
+ * batch. Batches are closed at {@link BatchPolicy#getMaxCount()} requests or
+ * {@link BatchPolicy#getMaxBytes()} bytes, or after the linger time.
+ * <p>
+ * With a connection scoped serializer, the requests are encoded under the
+ * lock, so that they reach the wire in the order they were serialized.
+ * </p>
+ * 
+ * @author dhf
+ */
+class RequestBatcher {
+    private static final ScheduledExecutorService LINGER = Executors
+            .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                    "eurpc-batch-linger", true));
+
+    private static final ThreadLocal<ReusableByteArrayOutputStream> FRAMES = BufferCache
+            .newStreams();
+
+    /**
+     * writes the batches to the connection
+     * 
+     * @author dhf
+     */
+    interface Writer {
+        /**
+         * @param header
+         *            header of the batch, null for a single request frame
+         * @param bytes
+         * @param offset
+         * @param length
+         * @throws IOException
+         */
+        void write(byte[] header, byte[] bytes, int offset, int length)
+                throws IOException;
+
+        /**
+         * called after the batches written at once
+         * 
+         * @throws IOException
+         */
+        void flush() throws IOException;
+
+        /**
+         * the pending requests are dropped, the connection must be closed
+         * 
+         * @param cause
+         */
+        void writeFailed(Throwable cause);
+    }
+
+    private final FrameCodec codec;
+
+    private final boolean ordered;
+
+    private final Writer writer;
+
+    private final int maxCount;
+
+    private final int maxBytes;
+
+    private final long lingerMicros;
+
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * frames of the requests waiting for the writer
+     */
+    private ReusableByteArrayOutputStream pending = new ReusableByteArrayOutputStream(
+            4096, 1024 * 1024);
+
+    /**
+     * frames being written, only touched by the writer
+     */
+    private ReusableByteArrayOutputStream spare = new ReusableByteArrayOutputStream(
+            4096, 1024 * 1024);
+
+    private int count;
+
+    private boolean writing;
+
+    private boolean lingering;
+
+    private final Runnable lingerFlush = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                lingering = false;
+            } finally {
+                lock.unlock();
+            }
+            flush();
+        }
+    };
+
+    /**
+     * @param codec
+     *            frames of the connection
+     * @param ordered
+     *            encode the requests under the lock, for connection scoped
+     *            serializers
+     * @param writer
+     * @param policy
+     */
+    RequestBatcher(FrameCodec codec, boolean ordered, Writer writer,
+            BatchPolicy policy) {
+        this.codec = codec;
+        this.ordered = ordered;
+        this.writer = writer;
+        this.maxCount = policy.getMaxCount();
+        this.maxBytes = policy.getMaxBytes();
+        this.lingerMicros = policy.getLingerMicros();
+    }
+
+    /**
+     * @return the requests are encoded in order, a failed request may have
+     *         corrupted the state of the serializer
+     */
+    boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * encode the request and add it to the pending batch, the batch is
+     * written by this thread if no other is writing and it is full or
+     * nothing lingers. Write failures are reported to
+     * {@link Writer#writeFailed(Throwable)}.
+     * 
+     * @param request
+     * @throws IOException
+     *             failed to encode the request
+     */
+    void submit(InvokeRequest request) throws IOException {
+        ReusableByteArrayOutputStream frame = FRAMES.get();
+        if (!ordered) {
+            frame.reset();
+            codec.writeRequest(frame, request);
+        }
+        boolean full;
+        lock.lock();
+        try {
+            if (ordered) {
+                frame.reset();
+                codec.writeRequest(frame, request);
+            }
+            frame.writeTo(pending);
+            count++;
+            full = lingerMicros == 0L || count >= maxCount
+                    || pending.size() >= maxBytes;
+            // a running writer takes the request with its next batch
+            if (!full && !writing && !lingering) {
+                lingering = true;
+                LINGER.schedule(lingerFlush, lingerMicros,
+                        TimeUnit.MICROSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * write the pending batches unless another thread is writing them
+     */
+    void flush() {
+        lock.lock();
+        try {
+            if (writing || count == 0) {
+                return;
+            }
+            writing = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            while (true) {
+                ReusableByteArrayOutputStream batch;
+                lock.lock();
+                try {
+                    if (count == 0) {
+                        writing = false;
+                        return;
+                    }
+                    batch = pending;
+                    pending = spare;
+                    spare = batch;
+                    count = 0;
+                } finally {
+                    lock.unlock();
+                }
+                write(batch.getBuffer(), batch.size());
+                batch.reset();
+            }
+        } catch (Throwable t) {
+            lock.lock();
+            try {
+                pending.reset();
+                spare.reset();
+                count = 0;
+                writing = false;
+            } finally {
+                lock.unlock();
+            }
+            writer.writeFailed(t);
+        }
+    }
+
+    /**
+     * split the frames into batches within the limits and write them
+     * 
+     * @param bytes
+     * @param length
+     * @throws IOException
+     */
+    private void write(byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int end = offset;
+            int members = 0;
+            long firstRequestID = 0L;
+            while (end < length && members < maxCount) {
+                FrameHeader header = FrameHeader.decode(bytes, end);
+                int frameEnd = end + FrameHeader.LENGTH
+                        + header.getBodyLength();
+                if (members > 0 && frameEnd - offset > maxBytes) {
+                    break;
+                }
+                if (members == 0) {
+                    firstRequestID = header.getRequestID();
+                }
+                members++;
+                end = frameEnd;
+            }
+            byte[] header = null;
+            if (members > 1) {
+                header = new FrameHeader(FrameHeader.TYPE_REQUEST_BATCH,
+                        (byte) 0, codec.getSerializerID(), firstRequestID,
+                        end - offset).toBytes();
+            }
+            writer.write(header, bytes, offset, end - offset);
+            offset = end;
+        }
+        writer.flush();
+    }
+}
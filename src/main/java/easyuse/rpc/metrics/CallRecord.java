@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.metrics;
+
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.util.MessageFormatter;
+
+/**
+ * timings of one call, in nanoseconds. Phases not measured by a side are -1:
+ * the clients only measure the total.
+ * 
+ * @author dhf
+ */
+public class CallRecord {
+    private final String service;
+
+    private final String method;
+
+    private final long decodeNanos;
+
+    private final long queueNanos;
+
+    private final long executionNanos;
+
+    private final long encodeNanos;
+
+    private final long totalNanos;
+
+    private final Throwable error;
+
+    /**
+     * @param service
+     * @param method
+     * @param decodeNanos
+     * @param queueNanos
+     * @param executionNanos
+     * @param encodeNanos
+     * @param totalNanos
+     * @param error
+     *            exception of the call, null if it succeeded
+     */
+    public CallRecord(String service, String method, long decodeNanos,
+            long queueNanos, long executionNanos, long encodeNanos,
+            long totalNanos, Throwable error) {
+        this.service = service;
+        this.method = method;
+        this.decodeNanos = decodeNanos;
+        this.queueNanos = queueNanos;
+        this.executionNanos = executionNanos;
+        this.encodeNanos = encodeNanos;
+        this.totalNanos = totalNanos;
+        this.error = error;
+    }
+
+    /**
+     * a call answered by a server: received, decoded, queued, executed from
+     * <code>start</code> to <code>executed</code>, then encoded and written
+     * until <code>written</code>
+     * 
+     * @param request
+     *            stamped with its receive and decode times
+     * @param service
+     * @param method
+     * @param start
+     * @param executed
+     * @param written
+     * @param error
+     * @return
+     */
+    public static CallRecord ofServerCall(InvokeRequest request,
+            String service, String method, long start, long executed,
+            long written, Throwable error) {
+        long received = request.getReceivedNanos();
+        long decode = request.getDecodeNanos();
+        if (received == 0L) {
+            // not stamped by the transport
+            received = start;
+            decode = 0L;
+        }
+        return new CallRecord(service, method, decode,
+                Math.max(0L, start - received - decode), executed - start,
+                written - executed, written - received, error);
+    }
+
+    /**
+     * @param service
+     * @param method
+     * @param totalNanos
+     *            from sending the request to receiving its response
+     * @param error
+     * @return
+     */
+    public static CallRecord ofClientCall(String service, String method,
+            long totalNanos, Throwable error) {
+        return new CallRecord(service, method, -1L, -1L, -1L, -1L,
+                totalNanos, error);
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getQueueNanos() {
+        return queueNanos;
+    }
+
+    public long getExecutionNanos() {
+        return executionNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isError() {
+        return null != error;
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormatter.format(
+                "{}.{}, decode: {}, queue: {}, execution: {}, encode: {}, "
+                        + "total: {}, error: {}", new Object[] {
+                    service, method, decodeNanos, queueNanos,
+                    executionNanos, encodeNanos, totalNanos, error
+                });
+    }
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counters and latency histograms of the calls of one service method
+ * 
+ * @author dhf
+ */
+public class MethodMetrics implements MethodMetricsMBean {
+    /**
+     * phases of a call, the clients only record the total
+     */
+    public static enum Phase {
+        DECODE, QUEUE, EXECUTION, ENCODE, TOTAL
+    }
+
+    private final String service;
+
+    private final String method;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<Phase, LatencyHistogram>(
+            Phase.class);
+
+    public MethodMetrics(String service, String method) {
+        this.service = service;
+        this.method = method;
+        for (Phase phase: Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public String getService() {
+        return service;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    /**
+     * a call started, counted in flight until it is recorded
+     */
+    public void callStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * @param record
+     *            a call counted by {@link #callStarted()}
+     */
+    public void callCompleted(CallRecord record) {
+        inFlight.decrementAndGet();
+        calls.incrementAndGet();
+        if (record.isError()) {
+            errors.incrementAndGet();
+        }
+        histograms.get(Phase.DECODE).record(record.getDecodeNanos());
+        histograms.get(Phase.QUEUE).record(record.getQueueNanos());
+        histograms.get(Phase.EXECUTION).record(record.getExecutionNanos());
+        histograms.get(Phase.ENCODE).record(record.getEncodeNanos());
+        histograms.get(Phase.TOTAL).record(record.getTotalNanos());
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public double getTotalMeanMicros() {
+        return histograms.get(Phase.TOTAL).getMean() / 1000D;
+    }
+
+    @Override
+    public long getTotalP50Micros() {
+        return histograms.get(Phase.TOTAL).getPercentile(50D) / 1000L;
+    }
+
+    @Override
+    public long getTotalP99Micros() {
+        return histograms.get(Phase.TOTAL).getPercentile(99D) / 1000L;
+    }
+
+    @Override
+    public long getTotalP999Micros() {
+        return histograms.get(Phase.TOTAL).getPercentile(99.9D) / 1000L;
+    }
+
+    @Override
+    public long getTotalMaxMicros() {
+        return histograms.get(Phase.TOTAL).getMax() / 1000L;
+    }
+
+    @Override
+    public double getDecodeMeanMicros() {
+        return histograms.get(Phase.DECODE).getMean() / 1000D;
+    }
+
+    @Override
+    public double getQueueMeanMicros() {
+        return histograms.get(Phase.QUEUE).getMean() / 1000D;
+    }
+
+    @Override
+    public double getExecutionMeanMicros() {
+        return histograms.get(Phase.EXECUTION).getMean() / 1000D;
+    }
+
+    @Override
+    public long getExecutionP99Micros() {
+        return histograms.get(Phase.EXECUTION).getPercentile(99D) / 1000L;
+    }
+
+    @Override
+    public double getEncodeMeanMicros() {
+        return histograms.get(Phase.ENCODE).getMean() / 1000D;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(service).append('.').append(method)
+                .append(": calls: ").append(getCalls()).append(", errors: ")
+                .append(getErrors()).append(", in flight: ")
+                .append(getInFlight());
+        for (Phase phase: Phase.values()) {
+            LatencyHistogram histogram = histograms.get(phase);
+            if (histogram.getCount() > 0) {
+                summary.append("\n  ").append(phase.name().toLowerCase())
+                        .append(": ").append(histogram);
+            }
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        calls.set(0L);
+        errors.set(0L);
+        for (LatencyHistogram histogram: histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+}
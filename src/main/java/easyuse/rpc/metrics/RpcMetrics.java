@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import easyuse.rpc.Logger;
+import easyuse.rpc.util.LoggerHolder;
+
+/**
+ * the per method metrics of a server or a client, optionally exposed as jmx
+ * mbeans named
+ * <code>easyuse.rpc:type=RpcMetrics,name=$name,service=$service,method=$method</code>
+ * 
+ * @author dhf
+ */
+public class RpcMetrics {
+    private static final Logger logger = LoggerHolder
+            .getLogger(RpcMetrics.class);
+
+    public static final String JMX_DOMAIN = "easyuse.rpc";
+
+    /**
+     * service and method name of the calls which can not be resolved
+     */
+    public static final String UNKNOWN = "unknown";
+
+    private final String name;
+
+    /**
+     * key: service, value: metrics by method name
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, MethodMetrics>> services = new ConcurrentHashMap<String, ConcurrentMap<String, MethodMetrics>>();
+
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+    private volatile boolean mbeansRegistered;
+
+    /**
+     * @param name
+     *            distinguishes the metrics of the servers and the clients of
+     *            one jvm in jmx
+     */
+    public RpcMetrics(String name) {
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param service
+     * @param method
+     * @return the metrics of the method, created on first use
+     */
+    public MethodMetrics getMethodMetrics(String service, String method) {
+        ConcurrentMap<String, MethodMetrics> methods = services.get(service);
+        if (null == methods) {
+            methods = new ConcurrentHashMap<String, MethodMetrics>();
+            ConcurrentMap<String, MethodMetrics> old = services.putIfAbsent(
+                    service, methods);
+            if (null != old) {
+                methods = old;
+            }
+        }
+        MethodMetrics metrics = methods.get(method);
+        if (null == metrics) {
+            metrics = new MethodMetrics(service, method);
+            MethodMetrics old = methods.putIfAbsent(method, metrics);
+            if (null != old) {
+                return old;
+            }
+            if (mbeansRegistered) {
+                registerMBean(metrics);
+            }
+        }
+        return metrics;
+    }
+
+    public List<MethodMetrics> getAllMethodMetrics() {
+        List<MethodMetrics> all = new ArrayList<MethodMetrics>();
+        for (ConcurrentMap<String, MethodMetrics> methods: services.values()) {
+            all.addAll(methods.values());
+        }
+        return all;
+    }
+
+    public void addListener(MetricsListener listener) {
+        if (null == listener) {
+            throw new NullPointerException("listener");
+        }
+        listeners.add(listener);
+    }
+
+    public void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * count a call in flight
+     * 
+     * @param service
+     * @param method
+     * @return the metrics to complete the call with
+     */
+    public MethodMetrics callStarted(String service, String method) {
+        MethodMetrics metrics = getMethodMetrics(service, method);
+        metrics.callStarted();
+        return metrics;
+    }
+
+    /**
+     * record a call started by {@link #callStarted(String, String)} and
+     * notify the listeners
+     * 
+     * @param metrics
+     * @param record
+     */
+    public void callCompleted(MethodMetrics metrics, CallRecord record) {
+        metrics.callCompleted(record);
+        for (MetricsListener listener: listeners) {
+            try {
+                listener.callCompleted(this, record);
+            } catch (Throwable t) {
+                logger.warn("notify metrics listener fail! record: <{}>",
+                        new Object[] {
+                            record
+                        }, t);
+            }
+        }
+    }
+
+    /**
+     * register the metrics of every method in the platform mbean server, the
+     * methods called later are registered on their first call
+     */
+    public synchronized void registerMBeans() {
+        mbeansRegistered = true;
+        for (MethodMetrics metrics: getAllMethodMetrics()) {
+            registerMBean(metrics);
+        }
+    }
+
+    public synchronized void unregisterMBeans() {
+        mbeansRegistered = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (MethodMetrics metrics: getAllMethodMetrics()) {
+            try {
+                ObjectName objectName = getObjectName(metrics);
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (Exception e) {
+                logger.warn("unregister metrics mbean fail! method: <{}>",
+                        new Object[] {
+                            metrics.getMethod()
+                        }, e);
+            }
+        }
+    }
+
+    public ObjectName getObjectName(MethodMetrics metrics) throws Exception {
+        return new ObjectName(JMX_DOMAIN + ":type=RpcMetrics,name="
+                + ObjectName.quote(name) + ",service="
+                + ObjectName.quote(metrics.getService()) + ",method="
+                + ObjectName.quote(metrics.getMethod()));
+    }
+
+    private void registerMBean(MethodMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName(metrics);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metrics, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("register metrics mbean fail! method: <{}>",
+                    new Object[] {
+                        metrics.getMethod()
+                    }, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder(name);
+        for (MethodMetrics metrics: getAllMethodMetrics()) {
+            report.append('\n').append(metrics.getSummary());
+        }
+        return report.toString();
+    }
+}
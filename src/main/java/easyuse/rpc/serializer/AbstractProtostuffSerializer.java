@@ -40,19 +40,13 @@ import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
 import easyuse.rpc.SerializeException;
 import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.util.BoundedInputStream;
 import easyuse.rpc.util.BufferCache;
-import easyuse.rpc.util.IOUtils;
 import easyuse.rpc.util.SchemaCache;
 
 /**
- * <p>
- * Format:
- * 
- * <pre>
- *  +---------------------------+-----------+
- *  |  content length(4 bytes)  |  content  |
- *  +---------------------------+-----------+
- * </pre>
+ * the messages are written without any header, the frame header in front of
+ * them carries their length, see {@link FrameCodec}
  * 
  * @see <a href="http://code.google.com/p/protostuff/wiki/ProtostuffRuntime"
  *      >ProtostuffRuntime</a>
@@ -60,6 +54,12 @@ import easyuse.rpc.util.SchemaCache;
  */
 public abstract class AbstractProtostuffSerializer implements ClientSerializer,
         ServerSerializer {
+    private static final Schema<InvokeRequest> REQUEST_SCHEMA = SchemaCache
+            .register(InvokeRequest.class);
+
+    private static final Schema<InvokeResponse> RESPONSE_SCHEMA = SchemaCache
+            .register(InvokeResponse.class);
+
     /**
      * @param buffer
      *            buffer writen to
@@ -71,66 +71,56 @@ public abstract class AbstractProtostuffSerializer implements ClientSerializer,
             Schema<T> schema);
 
     /**
-     * @param bytes
+     * @param in
+     *            content of exactly one message
      * @param template
      * @param schema
-     * @return
+     * @param buffer
+     *            scratch buffer used while reading the stream
+     * @throws IOException
      */
-    protected abstract <T> void parseObject(byte[] bytes, T template,
-            Schema<T> schema);
+    protected abstract <T> void parseObject(InputStream in, T template,
+            Schema<T> schema, LinkedBuffer buffer) throws IOException;
 
     @Override
     public InvokeRequest decodeRequest(InputStream inputStream)
             throws SerializeException, IOException {
-        return decode(inputStream, new InvokeRequest());
+        return decode(inputStream, new InvokeRequest(), REQUEST_SCHEMA);
     }
 
     @Override
     public void encodeResponse(OutputStream outputStream, InvokeResponse result)
             throws SerializeException, IOException {
-        encode(outputStream, result);
+        encode(outputStream, result, RESPONSE_SCHEMA);
     }
 
     @Override
     public InvokeResponse decodeResponse(InputStream inputStream)
             throws SerializeException, IOException {
-        return decode(inputStream, new InvokeResponse());
+        return decode(inputStream, new InvokeResponse(), RESPONSE_SCHEMA);
     }
 
     @Override
     public void encodeRequest(OutputStream outputStream, InvokeRequest request)
             throws SerializeException, IOException {
-        encode(outputStream, request);
+        encode(outputStream, request, REQUEST_SCHEMA);
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private <T> void encode(OutputStream out, T object) throws IOException {
+    private <T> void encode(OutputStream out, T object, Schema<T> schema)
+            throws IOException {
         LinkedBuffer buffer = BufferCache.getBuffer();
-        Schema schema = null;
-        if (null == object) {
-            schema = SchemaCache.getSchema(Object.class);
-        } else {
-            schema = SchemaCache.getSchema(object.getClass());
-        }
-
-        // write the length header
         int length = writeObject(buffer, object, schema);
-        IOUtils.writeInt(out, length);
-        // write content
         LinkedBuffer.writeTo(out, buffer);
+        BufferCache.recordSize(length);
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private <T> T decode(InputStream in, T template) throws IOException {
-        Schema schema = SchemaCache.getSchema(template.getClass());
-
-        // read the length header
-        int length = IOUtils.readInt(in);
-        // read exactly $length bytes
-        byte[] bytes = new byte[length];
-        IOUtils.readFully(in, bytes, 0, length);
-        // parse object
-        parseObject(bytes, template, schema);
+    private <T> T decode(InputStream in, T template, Schema<T> schema)
+            throws IOException {
+        // the stream ends with the message
+        int length = in instanceof BoundedInputStream ? ((BoundedInputStream) in)
+                .remaining() : in.available();
+        parseObject(in, template, schema, BufferCache.getBuffer());
+        BufferCache.recordSize(length);
         return template;
     }
 }
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.ConnectionScopedSerializer;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.SerializeException;
+import easyuse.rpc.ServerSerializer;
+
+/**
+ * compresses the messages of another serializer once they reach a threshold.
+ * The transports compress the frame bodies with the compressor and set
+ * {@link easyuse.rpc.util.FrameHeader#FLAG_COMPRESSED} along with the ID of
+ * the compressor, see {@link FrameCodec}; smaller messages are written as is.
+ * Any peer reads deflated frames whether it wraps its serializer or not,
+ * other codecs must be registered on the peer, by wrapping its serializer
+ * with the same compressor or by
+ * {@link FrameCodec#registerCompressor(Compressor)}.
+ * 
+ * @author dhf
+ */
+public class CompressingSerializer implements ClientSerializer,
+        ServerSerializer {
+    public static final int DEFAULT_THRESHOLD = 4096;
+
+    private final Object serializer;
+
+    private final Compressor compressor;
+
+    private final int threshold;
+
+    /**
+     * @param serializer
+     *            serializer of the messages, a {@link ClientSerializer} and/or
+     *            a {@link ServerSerializer}
+     * @param compressor
+     * @param threshold
+     *            messages of at least threshold bytes are compressed
+     */
+    protected CompressingSerializer(Object serializer, Compressor compressor,
+            int threshold) {
+        if (null == serializer) {
+            throw new NullPointerException("serializer");
+        }
+        if (null == compressor) {
+            throw new NullPointerException("compressor");
+        }
+        this.serializer = serializer;
+        this.compressor = compressor;
+        this.threshold = threshold;
+    }
+
+    /**
+     * compress messages of at least {@link #DEFAULT_THRESHOLD} bytes with
+     * {@link DeflateCompressor}
+     * 
+     * @param serializer
+     * @return
+     */
+    public static CompressingSerializer wrap(Object serializer) {
+        return wrap(serializer, new DeflateCompressor(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param serializer
+     *            a {@link ClientSerializer} and/or a {@link ServerSerializer}
+     * @param compressor
+     * @param threshold
+     *            messages of at least threshold bytes are compressed
+     * @return
+     */
+    public static CompressingSerializer wrap(Object serializer,
+            Compressor compressor, int threshold) {
+        if (serializer instanceof ConnectionScopedSerializer) {
+            return new ConnectionScoped(serializer, compressor, threshold);
+        }
+        return new CompressingSerializer(serializer, compressor, threshold);
+    }
+
+    /**
+     * @return the wrapped serializer
+     */
+    public Object getSerializer() {
+        return serializer;
+    }
+
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public void encodeRequest(OutputStream outputStream, InvokeRequest request)
+            throws SerializeException, IOException {
+        ((ClientSerializer) serializer).encodeRequest(outputStream, request);
+    }
+
+    @Override
+    public InvokeRequest decodeRequest(InputStream inputStream)
+            throws SerializeException, IOException {
+        return ((ServerSerializer) serializer).decodeRequest(inputStream);
+    }
+
+    @Override
+    public void encodeResponse(OutputStream outputStream, InvokeResponse result)
+            throws SerializeException, IOException {
+        ((ServerSerializer) serializer).encodeResponse(outputStream, result);
+    }
+
+    @Override
+    public InvokeResponse decodeResponse(InputStream inputStream)
+            throws SerializeException, IOException {
+        return ((ClientSerializer) serializer).decodeResponse(inputStream);
+    }
+
+    /**
+     * wraps a connection scoped serializer, a new instance wraps a new
+     * instance of the serializer
+     */
+    private static class ConnectionScoped extends CompressingSerializer
+            implements ConnectionScopedSerializer {
+        ConnectionScoped(Object serializer, Compressor compressor,
+                int threshold) {
+            super(serializer, compressor, threshold);
+        }
+
+        @Override
+        public ConnectionScopedSerializer newInstance() {
+            CompressingSerializer prototype = this;
+            return new ConnectionScoped(
+                    ((ConnectionScopedSerializer) prototype.serializer)
+                            .newInstance(),
+                    prototype.compressor, prototype.threshold);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * compression codec of {@link CompressingSerializer}, implementations must be
+ * thread safe
+ * 
+ * @author dhf
+ */
+public interface Compressor {
+    /**
+     * ID of the codec carried in the header of the compressed frames, so that
+     * the peer decompresses with the same codec, see
+     * {@link FrameCodec#registerCompressor(Compressor)}; 1 to
+     * {@link easyuse.rpc.util.FrameHeader#MAX_COMPRESSOR_ID}, 1 is deflate
+     * 
+     * @return
+     */
+    byte getID();
+
+    /**
+     * compress the bytes into the output stream
+     * 
+     * @param src
+     * @param offset
+     * @param length
+     * @param out
+     * @throws IOException
+     */
+    void compress(byte[] src, int offset, int length, OutputStream out)
+            throws IOException;
+
+    /**
+     * decompress exactly $length bytes of the input stream into the output
+     * stream
+     * 
+     * @param in
+     * @param length
+     *            length of the compressed bytes
+     * @param originalLength
+     *            length of the bytes before compression
+     * @param out
+     * @throws IOException
+     */
+    void decompress(InputStream in, int length, int originalLength,
+            OutputStream out) throws IOException;
+}
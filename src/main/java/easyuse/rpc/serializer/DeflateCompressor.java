@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import easyuse.rpc.SerializeException;
+import easyuse.rpc.util.IOUtils;
+
+/**
+ * {@link Compressor} of jdk deflate, the deflaters are kept per thread
+ * 
+ * @author dhf
+ */
+public class DeflateCompressor implements Compressor {
+    public static final byte ID = 1;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(level);
+        };
+    };
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        };
+    };
+
+    private final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        };
+    };
+
+    private final ThreadLocal<byte[]> outputChunks = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        };
+    };
+
+    /**
+     * fastest compression, large payloads are usually bound by bandwidth
+     * rather than by the compression ratio
+     */
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level
+     *            compression level of {@link Deflater}
+     */
+    public DeflateCompressor(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getID() {
+        return ID;
+    }
+
+    @Override
+    public void compress(byte[] src, int offset, int length, OutputStream out)
+            throws IOException {
+        Deflater deflater = deflaters.get();
+        byte[] chunk = chunks.get();
+        try {
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public void decompress(InputStream in, int length, int originalLength,
+            OutputStream out) throws IOException {
+        Inflater inflater = inflaters.get();
+        byte[] chunk = chunks.get();
+        byte[] output = outputChunks.get();
+        int remaining = length;
+        int inflated = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining <= 0) {
+                        throw new SerializeException("truncated deflate data");
+                    }
+                    int n = Math.min(remaining, chunk.length);
+                    IOUtils.readFully(in, chunk, 0, n);
+                    remaining -= n;
+                    inflater.setInput(chunk, 0, n);
+                }
+                int n = inflater.inflate(output);
+                if (inflater.needsDictionary()) {
+                    throw new SerializeException(
+                            "deflate data needs a preset dictionary");
+                }
+                if (n == 0 && !inflater.finished() && !inflater.needsInput()) {
+                    // no progress, the data would never finish
+                    throw new SerializeException("corrupted deflate data");
+                }
+                inflated += n;
+                if (inflated > originalLength) {
+                    throw new SerializeException(
+                            "deflate data longer than declared: "
+                                    + originalLength);
+                }
+                out.write(output, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new SerializeException(e);
+        } finally {
+            inflater.reset();
+        }
+        if (inflated != originalLength || remaining != 0) {
+            throw new SerializeException("corrupted deflate data");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.SerializeException;
+import easyuse.rpc.util.FrameHeader;
+
+/**
+ * a frame read off the wire, of which the body is not deserialized yet. The
+ * transports hand it over to another thread, so that large bodies do not
+ * hold the io threads up.
+ * 
+ * @author dhf
+ */
+public class Frame {
+    private final FrameCodec codec;
+
+    private final FrameHeader header;
+
+    private final byte[] body;
+
+    /**
+     * {@link System#nanoTime()} when the frame was received
+     */
+    private final long receivedNanos = System.nanoTime();
+
+    /**
+     * @param codec
+     *            codec deserializing the body
+     * @param header
+     * @param body
+     *            a copy of the body, owned by the frame
+     */
+    public Frame(FrameCodec codec, FrameHeader header, byte[] body) {
+        if (null == codec) {
+            throw new NullPointerException("codec");
+        }
+        if (null == header) {
+            throw new NullPointerException("header");
+        }
+        if (null == body) {
+            throw new NullPointerException("body");
+        }
+        this.codec = codec;
+        this.header = header;
+        this.body = body;
+    }
+
+    public FrameHeader getHeader() {
+        return header;
+    }
+
+    public long getRequestID() {
+        return header.getRequestID();
+    }
+
+    /**
+     * deserialize the body
+     * 
+     * @return an {@link InvokeRequest} or an
+     *         {@link easyuse.rpc.InvokeResponse}
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public Object decode() throws SerializeException, IOException {
+        Object message = codec.decodeBody(header, new ByteArrayInputStream(
+                body));
+        if (message instanceof InvokeRequest) {
+            // the time waiting for decoding counts as queued
+            ((InvokeRequest) message).setReceivedNanos(receivedNanos);
+        }
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return header.toString();
+    }
+}
@@ -0,0 +1,584 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.SerializeException;
+import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.util.BoundedInputStream;
+import easyuse.rpc.util.BufferCache;
+import easyuse.rpc.util.FrameHeader;
+import easyuse.rpc.util.IOUtils;
+import easyuse.rpc.util.ReusableByteArrayOutputStream;
+
+/**
+ * writes and reads the frames of the messages: a {@link FrameHeader} followed
+ * by the body written by the serializer. The bodies of a
+ * {@link CompressingSerializer} reaching its threshold are compressed, the
+ * header flags them along with the ID of the compressor:
+ * 
+ * <pre>
+ *  +----------+---------------------------------+-------------------+
+ *  |  header  |  original body length(4 bytes)  |  compressed body  |
+ *  +----------+---------------------------------+-------------------+
+ * </pre>
+ * <p>
+ * Peers decompress with the compressor registered under that ID, deflate and
+ * the compressors of the codecs of the process are registered; other codecs
+ * a peer may send are registered by {@link #registerCompressor(Compressor)}.
+ * </p>
+ * <p>
+ * Messages written together go out as one batch frame, whose body is the
+ * frames of the messages.
+ * </p>
+ * <p>
+ * a codec is as thread safe as its serializer.
+ * </p>
+ * 
+ * @author dhf
+ */
+public class FrameCodec {
+    public static final byte SERIALIZER_JDK = 1;
+
+    public static final byte SERIALIZER_JDK_STREAM = 2;
+
+    public static final byte SERIALIZER_PROTOSTUFF = 3;
+
+    public static final byte SERIALIZER_PROTOBUF = 4;
+
+    public static final byte SERIALIZER_GRAPH = 5;
+
+    private static final Map<Class<?>, Byte> SERIALIZER_IDS = new HashMap<Class<?>, Byte>();
+
+    static {
+        SERIALIZER_IDS.put(JDKObjectSerializer.class, SERIALIZER_JDK);
+        SERIALIZER_IDS.put(JDKStreamSerializer.class, SERIALIZER_JDK_STREAM);
+        SERIALIZER_IDS.put(ProtoStuffSerializer.class, SERIALIZER_PROTOSTUFF);
+        SERIALIZER_IDS.put(ProtobufSerializer.class, SERIALIZER_PROTOBUF);
+        SERIALIZER_IDS.put(GraphSerializer.class, SERIALIZER_GRAPH);
+    }
+
+    /**
+     * decompress the frames by the compressor ID of their header
+     */
+    private static final ConcurrentMap<Byte, Compressor> COMPRESSORS = new ConcurrentHashMap<Byte, Compressor>();
+
+    static {
+        registerCompressor(new DeflateCompressor());
+    }
+
+    private static final ThreadLocal<ReusableByteArrayOutputStream> BODIES = BufferCache
+            .newStreams();
+
+    private static final ThreadLocal<ReusableByteArrayOutputStream> COMPRESSED_BODIES = BufferCache
+            .newStreams();
+
+    private static final ThreadLocal<ReusableByteArrayOutputStream> BATCHES = BufferCache
+            .newStreams();
+
+    private final Object serializer;
+
+    private final byte serializerID;
+
+    /**
+     * null if the bodies are never compressed
+     */
+    private final Compressor compressor;
+
+    private final int threshold;
+
+    /**
+     * @param serializer
+     *            a {@link ClientSerializer} and/or a {@link ServerSerializer},
+     *            the bodies of a {@link CompressingSerializer} are compressed
+     */
+    public FrameCodec(Object serializer) {
+        if (null == serializer) {
+            throw new NullPointerException("serializer");
+        }
+        this.serializer = serializer;
+        Object target = serializer;
+        if (serializer instanceof CompressingSerializer) {
+            CompressingSerializer compressing = (CompressingSerializer) serializer;
+            this.compressor = compressing.getCompressor();
+            registerCompressor(compressor);
+            this.threshold = compressing.getThreshold();
+            target = compressing.getSerializer();
+        } else {
+            this.compressor = null;
+            this.threshold = 0;
+        }
+        Byte id = SERIALIZER_IDS.get(target.getClass());
+        this.serializerID = null == id ? FrameHeader.SERIALIZER_UNKNOWN : id;
+    }
+
+    /**
+     * decompress the frames carrying the ID of the compressor with it
+     * 
+     * @param compressor
+     * @throws IllegalArgumentException
+     *             if the ID is out of range, or already taken by another
+     *             codec
+     */
+    public static void registerCompressor(Compressor compressor) {
+        if (null == compressor) {
+            throw new NullPointerException("compressor");
+        }
+        byte id = compressor.getID();
+        if (id < 1 || id > FrameHeader.MAX_COMPRESSOR_ID) {
+            throw new IllegalArgumentException("illegal compressor ID: " + id
+                    + ", " + compressor.getClass().getName());
+        }
+        Compressor registered = COMPRESSORS.putIfAbsent(id, compressor);
+        if (null != registered
+                && registered.getClass() != compressor.getClass()) {
+            throw new IllegalArgumentException("compressor ID " + id
+                    + " taken by " + registered.getClass().getName() + ", "
+                    + compressor.getClass().getName());
+        }
+    }
+
+    /**
+     * @return ID of the serializer carried by the frame headers,
+     *         {@link FrameHeader#SERIALIZER_UNKNOWN} for custom serializers
+     */
+    public byte getSerializerID() {
+        return serializerID;
+    }
+
+    /**
+     * write the frame of the request, the body is encoded before the header
+     * 
+     * @param out
+     * @param request
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public void writeRequest(OutputStream out, InvokeRequest request)
+            throws SerializeException, IOException {
+        writeFrame(out, FrameHeader.TYPE_REQUEST, request.getRequestID(),
+                request);
+    }
+
+    /**
+     * write the frame of the response, the body is encoded before the header
+     * 
+     * @param out
+     * @param response
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public void writeResponse(OutputStream out, InvokeResponse response)
+            throws SerializeException, IOException {
+        writeFrame(out, FrameHeader.TYPE_RESPONSE, response.getRequestID(),
+                response);
+    }
+
+    /**
+     * write the requests in one batch frame, a single request in a request
+     * frame
+     * 
+     * @param out
+     * @param requests
+     *            not empty
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public void writeRequests(OutputStream out, List<InvokeRequest> requests)
+            throws SerializeException, IOException {
+        if (requests.size() == 1) {
+            writeRequest(out, requests.get(0));
+            return;
+        }
+        writeBatch(out, FrameHeader.TYPE_REQUEST_BATCH,
+                FrameHeader.TYPE_REQUEST, requests);
+    }
+
+    /**
+     * write the responses in one batch frame, a single response in a response
+     * frame
+     * 
+     * @param out
+     * @param responses
+     *            not empty
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public void writeResponses(OutputStream out,
+            List<InvokeResponse> responses) throws SerializeException,
+            IOException {
+        if (responses.size() == 1) {
+            writeResponse(out, responses.get(0));
+            return;
+        }
+        writeBatch(out, FrameHeader.TYPE_RESPONSE_BATCH,
+                FrameHeader.TYPE_RESPONSE, responses);
+    }
+
+    /**
+     * read the requests of the next request frame or request batch, frames of
+     * other types and batches of no request are skipped
+     * 
+     * @param in
+     * @return
+     * @throws java.io.EOFException
+     *             if the stream ends before the next frame
+     * @throws SerializeException
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public List<InvokeRequest> readRequests(InputStream in)
+            throws SerializeException, IOException {
+        return (List<InvokeRequest>) readFrames(in, FrameHeader.TYPE_REQUEST,
+                FrameHeader.TYPE_REQUEST_BATCH);
+    }
+
+    /**
+     * read the responses of the next response frame or response batch, frames
+     * of other types and batches of no response are skipped
+     * 
+     * @param in
+     * @return
+     * @throws java.io.EOFException
+     *             if the stream ends before the next frame
+     * @throws SerializeException
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public List<InvokeResponse> readResponses(InputStream in)
+            throws SerializeException, IOException {
+        return (List<InvokeResponse>) readFrames(in,
+                FrameHeader.TYPE_RESPONSE, FrameHeader.TYPE_RESPONSE_BATCH);
+    }
+
+    /**
+     * read the next request frame, frames of other types and batches are
+     * skipped
+     * 
+     * @param in
+     * @return
+     * @throws java.io.EOFException
+     *             if the stream ends before the next frame
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public InvokeRequest readRequest(InputStream in)
+            throws SerializeException, IOException {
+        return (InvokeRequest) readFrame(in, FrameHeader.TYPE_REQUEST);
+    }
+
+    /**
+     * read the next response frame, frames of other types and batches are
+     * skipped
+     * 
+     * @param in
+     * @return
+     * @throws java.io.EOFException
+     *             if the stream ends before the next frame
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public InvokeResponse readResponse(InputStream in)
+            throws SerializeException, IOException {
+        return (InvokeResponse) readFrame(in, FrameHeader.TYPE_RESPONSE);
+    }
+
+    /**
+     * encode the body of a frame, for the transports writing the header once
+     * the body length is known
+     * 
+     * @param out
+     * @param message
+     *            an {@link InvokeRequest} or an {@link InvokeResponse}
+     * @return flags of the frame
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public byte encodeBody(OutputStream out, Object message)
+            throws SerializeException, IOException {
+        if (null == compressor) {
+            serialize(out, message);
+            return 0;
+        }
+        ReusableByteArrayOutputStream body = BODIES.get();
+        body.reset();
+        serialize(body, message);
+        ReusableByteArrayOutputStream compressed = compress(body);
+        if (null == compressed) {
+            body.writeTo(out);
+            return 0;
+        }
+        IOUtils.writeInt(out, body.size());
+        compressed.writeTo(out);
+        return FrameHeader.compressedFlags(compressor.getID());
+    }
+
+    /**
+     * decode the body of a request or a response frame
+     * 
+     * @param header
+     * @param body
+     *            exactly the body of the frame
+     * @return an {@link InvokeRequest} or an {@link InvokeResponse}
+     * @throws SerializeException
+     * @throws IOException
+     */
+    public Object decodeBody(FrameHeader header, InputStream body)
+            throws SerializeException, IOException {
+        byte type = header.getType();
+        if (type != FrameHeader.TYPE_REQUEST
+                && type != FrameHeader.TYPE_RESPONSE) {
+            throw new SerializeException("no message in the frame: " + header);
+        }
+        byte frameSerializerID = header.getSerializerID();
+        if (frameSerializerID != serializerID
+                && frameSerializerID != FrameHeader.SERIALIZER_UNKNOWN
+                && serializerID != FrameHeader.SERIALIZER_UNKNOWN) {
+            throw new SerializeException("serializer mismatch, expected: "
+                    + serializerID + ", frame: " + header);
+        }
+        if (type == FrameHeader.TYPE_RESPONSE) {
+            if (header.isCompressed()) {
+                body = decompress(header, body);
+            }
+            return ((ClientSerializer) serializer).decodeResponse(body);
+        }
+        // the requests carry their decoding time to the server metrics
+        long start = System.nanoTime();
+        if (header.isCompressed()) {
+            body = decompress(header, body);
+        }
+        InvokeRequest request = ((ServerSerializer) serializer)
+                .decodeRequest(body);
+        request.setReceivedNanos(start);
+        request.setDecodeNanos(System.nanoTime() - start);
+        return request;
+    }
+
+    /**
+     * decode the frames in the body of a batch
+     * 
+     * @param header
+     *            header of the batch
+     * @param body
+     *            exactly the body of the batch
+     * @param deferBodies
+     *            copy the bodies into {@link Frame}s instead of decoding them
+     * @return the messages or the {@link Frame}s, frames of other types than
+     *         the members of the batch are skipped
+     * @throws SerializeException
+     *             if the batch holds no frame
+     * @throws IOException
+     */
+    public List<Object> decodeBatch(FrameHeader header, InputStream body,
+            boolean deferBodies) throws SerializeException, IOException {
+        byte memberType;
+        if (header.getType() == FrameHeader.TYPE_REQUEST_BATCH) {
+            memberType = FrameHeader.TYPE_REQUEST;
+        } else if (header.getType() == FrameHeader.TYPE_RESPONSE_BATCH) {
+            memberType = FrameHeader.TYPE_RESPONSE;
+        } else {
+            throw new SerializeException("not a batch: " + header);
+        }
+        if (header.getBodyLength() == 0) {
+            throw new SerializeException("empty batch: " + header);
+        }
+        BoundedInputStream members = new BoundedInputStream(body, header
+                .getBodyLength());
+        List<Object> messages = new ArrayList<Object>();
+        while (members.remaining() > 0) {
+            FrameHeader memberHeader = FrameHeader.read(members);
+            if (memberHeader.getBodyLength() > members.remaining()) {
+                throw new SerializeException("frame beyond its batch: "
+                        + memberHeader);
+            }
+            BoundedInputStream memberBody = new BoundedInputStream(members,
+                    memberHeader.getBodyLength());
+            if (memberHeader.getType() != memberType) {
+                memberBody.skipRemaining();
+                continue;
+            }
+            if (deferBodies) {
+                byte[] bytes = new byte[memberHeader.getBodyLength()];
+                IOUtils.readFully(memberBody, bytes, 0, bytes.length);
+                messages.add(new Frame(this, memberHeader, bytes));
+            } else {
+                messages.add(decodeBody(memberHeader, memberBody));
+                memberBody.skipRemaining();
+            }
+        }
+        return messages;
+    }
+
+    private void writeBatch(OutputStream out, byte type, byte memberType,
+            List<?> messages) throws IOException {
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("no message to write");
+        }
+        ReusableByteArrayOutputStream batch = BATCHES.get();
+        batch.reset();
+        for (Object message: messages) {
+            writeFrame(batch, memberType, getRequestID(message), message);
+        }
+        new FrameHeader(type, (byte) 0, serializerID, getRequestID(messages
+                .get(0)), batch.size()).write(out);
+        batch.writeTo(out);
+    }
+
+    private static long getRequestID(Object message) {
+        if (message instanceof InvokeRequest) {
+            return ((InvokeRequest) message).getRequestID();
+        }
+        return ((InvokeResponse) message).getRequestID();
+    }
+
+    private void writeFrame(OutputStream out, byte type, long requestID,
+            Object message) throws IOException {
+        ReusableByteArrayOutputStream body = BODIES.get();
+        body.reset();
+        serialize(body, message);
+        ReusableByteArrayOutputStream compressed = compress(body);
+        if (null == compressed) {
+            new FrameHeader(type, (byte) 0, serializerID, requestID,
+                    body.size()).write(out);
+            body.writeTo(out);
+            return;
+        }
+        new FrameHeader(type, FrameHeader.compressedFlags(compressor.getID()),
+                serializerID, requestID, compressed.size() + 4).write(out);
+        IOUtils.writeInt(out, body.size());
+        compressed.writeTo(out);
+    }
+
+    private List<?> readFrames(InputStream in, byte type, byte batchType)
+            throws IOException {
+        while (true) {
+            FrameHeader header = FrameHeader.read(in);
+            BoundedInputStream body = new BoundedInputStream(in,
+                    header.getBodyLength());
+            if (header.getType() == type) {
+                Object message = decodeBody(header, body);
+                body.skipRemaining();
+                return Collections.singletonList(message);
+            }
+            if (header.getType() == batchType) {
+                List<Object> messages = decodeBatch(header, body, false);
+                body.skipRemaining();
+                if (messages.isEmpty()) {
+                    // only frames this version does not know
+                    continue;
+                }
+                return messages;
+            }
+            // heartbeats, or frames this version does not know
+            body.skipRemaining();
+        }
+    }
+
+    private Object readFrame(InputStream in, byte type) throws IOException {
+        while (true) {
+            FrameHeader header = FrameHeader.read(in);
+            BoundedInputStream body = new BoundedInputStream(in,
+                    header.getBodyLength());
+            if (header.getType() != type) {
+                // heartbeats, or frames this version does not know
+                body.skipRemaining();
+                continue;
+            }
+            Object message = decodeBody(header, body);
+            body.skipRemaining();
+            return message;
+        }
+    }
+
+    private void serialize(OutputStream out, Object message)
+            throws IOException {
+        if (message instanceof InvokeRequest) {
+            ((ClientSerializer) serializer).encodeRequest(out,
+                    (InvokeRequest) message);
+        } else {
+            ((ServerSerializer) serializer).encodeResponse(out,
+                    (InvokeResponse) message);
+        }
+    }
+
+    /**
+     * @param body
+     * @return the compressed body, null if the body stays uncompressed
+     * @throws IOException
+     */
+    private ReusableByteArrayOutputStream compress(
+            ReusableByteArrayOutputStream body) throws IOException {
+        if (null == compressor || body.size() < threshold) {
+            return null;
+        }
+        ReusableByteArrayOutputStream compressed = COMPRESSED_BODIES.get();
+        compressed.reset();
+        compressor.compress(body.getBuffer(), 0, body.size(), compressed);
+        if (compressed.size() + 4 >= body.size()) {
+            // not worth it
+            return null;
+        }
+        return compressed;
+    }
+
+    private InputStream decompress(FrameHeader header, InputStream body)
+            throws IOException {
+        int length = header.getBodyLength() - 4;
+        int originalLength = IOUtils.readInt(body);
+        if (length < 0 || originalLength < 0) {
+            throw new SerializeException("illegal compressed frame: "
+                    + header);
+        }
+        Compressor decompressor = COMPRESSORS.get(header.getCompressorID());
+        if (null == decompressor) {
+            throw new SerializeException("unknown compressor: "
+                    + header.getCompressorID() + ", frame: " + header);
+        }
+        ReusableByteArrayOutputStream decompressed = COMPRESSED_BODIES.get();
+        decompressed.reset();
+        decompressor.decompress(body, length, originalLength, decompressed);
+        return new ByteArrayInputStream(decompressed.getBuffer(), 0,
+                decompressed.size());
+    }
+}
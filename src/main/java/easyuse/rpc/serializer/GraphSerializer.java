@@ -28,6 +28,9 @@
  ******************************************************************************/
 package easyuse.rpc.serializer;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import com.dyuproject.protostuff.GraphIOUtil;
 import com.dyuproject.protostuff.LinkedBuffer;
 import com.dyuproject.protostuff.Schema;
@@ -69,8 +72,9 @@ public class GraphSerializer extends AbstractProtostuffSerializer {
     }
 
     @Override
-    protected <T> void parseObject(byte[] bytes, T template, Schema<T> schema) {
-        GraphIOUtil.mergeFrom(bytes, template, schema);
+    protected <T> void parseObject(InputStream in, T template,
+            Schema<T> schema, LinkedBuffer buffer) throws IOException {
+        GraphIOUtil.mergeFrom(in, template, schema, buffer);
     }
 
 }
@@ -28,7 +28,6 @@
  ******************************************************************************/
 package easyuse.rpc.serializer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -40,12 +39,12 @@ import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
 import easyuse.rpc.SerializeException;
 import easyuse.rpc.ServerSerializer;
-import easyuse.rpc.util.IOUtils;
 
 /**
- * jdk default serialize
+ * jdk default serialize, every message is a separate object stream
  * 
  * @author dhf
+ * @see JDKStreamSerializer
  */
 public class JDKObjectSerializer implements ClientSerializer, ServerSerializer {
 
@@ -61,9 +60,6 @@ public class JDKObjectSerializer implements ClientSerializer, ServerSerializer {
     public InvokeResponse decodeResponse(InputStream inputStream)
             throws SerializeException, IOException {
         try {
-            // read length field header
-            IOUtils.readInt(inputStream);
-            // pase object
             ObjectInputStream input = new ObjectInputStream(inputStream);
             return (InvokeResponse) input.readObject();
         } catch (ClassNotFoundException e) {
@@ -74,31 +70,34 @@ public class JDKObjectSerializer implements ClientSerializer, ServerSerializer {
     @Override
     public void encodeRequest(OutputStream outputStream, InvokeRequest request)
             throws SerializeException, IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
-        ObjectOutputStream objOut = new ObjectOutputStream(baos);
-        objOut.writeUTF(request.getRequestID());
+        ObjectOutputStream objOut = new ObjectOutputStream(outputStream);
+        objOut.writeLong(request.getRequestID());
         objOut.writeUTF(request.getClassName());
-        objOut.writeUTF(request.getMethodName());
-        objOut.writeObject(request.getParameterTypes());
+        // compact requests carry the method ID only
+        objOut.writeBoolean(request.isCompact());
+        if (request.isCompact()) {
+            objOut.writeInt(request.getMethodID());
+        } else {
+            objOut.writeUTF(request.getMethodName());
+            objOut.writeObject(request.getParameterTypes());
+        }
         objOut.writeObject(request.getParameters());
 
-        // get serialized object bytes
-        byte[] bytes = baos.toByteArray();
-        // write length field header
-        IOUtils.writeInt(outputStream, bytes.length);
-        // write object bytes
-        outputStream.write(bytes);
+        objOut.flush();
     }
 
     public InvokeRequest decodeRequest(InputStream inputStream)
             throws SerializeException, IOException {
         try {
-            // read length field header
-            IOUtils.readInt(inputStream);
-            // parse object
             ObjectInputStream input = new ObjectInputStream(inputStream);
-            String requestID = input.readUTF();
+            long requestID = input.readLong();
             String className = input.readUTF();
+            if (input.readBoolean()) {
+                int methodID = input.readInt();
+                Object[] parameters = (Object[]) input.readObject();
+                return new InvokeRequest(requestID, className, methodID,
+                        parameters);
+            }
             String methodName = input.readUTF();
             String[] parameterTypes = (String[]) input.readObject();
             Object[] parameters = (Object[]) input.readObject();
@@ -112,15 +111,9 @@ public class JDKObjectSerializer implements ClientSerializer, ServerSerializer {
     @Override
     public void encodeResponse(OutputStream outputStream, InvokeResponse result)
             throws SerializeException, IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
-        ObjectOutputStream objOut = new ObjectOutputStream(baos);
+        ObjectOutputStream objOut = new ObjectOutputStream(outputStream);
         objOut.writeObject(result);
 
-        // get serialized object bytes
-        byte[] bytes = baos.toByteArray();
-        // write length field header
-        IOUtils.writeInt(outputStream, bytes.length);
-        // write object bytes
-        outputStream.write(bytes);
+        objOut.flush();
     }
 }
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import easyuse.rpc.ClientSerializer;
+import easyuse.rpc.ConnectionScopedSerializer;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.SerializeException;
+import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.util.ReusableByteArrayOutputStream;
+
+/**
+ * jdk serialize over object streams kept for the whole connection. The stream
+ * header and the class descriptors are written once per connection, later
+ * messages refer to the descriptors by numeric IDs. The object references are
+ * reset before each message, so that every message is a complete graph and
+ * objects modified since an earlier message are sent again. A message which
+ * fails to decode leaves the streams unusable, the connection must be closed.
+ * <p>
+ * Each connection needs its own instance, see
+ * {@link ConnectionScopedSerializer}. The instance given to the servers and
+ * connection factories is only used as a prototype.
+ * </p>
+ * 
+ * @author dhf
+ */
+public class JDKStreamSerializer implements ClientSerializer,
+        ServerSerializer, ConnectionScopedSerializer {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(
+            INITIAL_BUFFER_SIZE, MAX_RETAINED_BUFFER_SIZE);
+
+    private final FrameInputStream frame = new FrameInputStream();
+
+    private final Lock encodeLock = new ReentrantLock();
+
+    private final Lock decodeLock = new ReentrantLock();
+
+    private ObjectOutputStream objOut;
+
+    private ObjectInputStream objIn;
+
+    /**
+     * true until the first message carrying the stream header is written
+     */
+    private boolean headerPending;
+
+    @Override
+    public ConnectionScopedSerializer newInstance() {
+        return new JDKStreamSerializer();
+    }
+
+    @Override
+    public void encodeRequest(OutputStream outputStream, InvokeRequest request)
+            throws SerializeException, IOException {
+        encodeLock.lock();
+        boolean encoded = false;
+        try {
+            ObjectOutputStream out = beginEncode();
+            out.writeLong(request.getRequestID());
+            out.writeUTF(request.getClassName());
+            // compact requests carry the method ID only
+            out.writeBoolean(request.isCompact());
+            if (request.isCompact()) {
+                out.writeInt(request.getMethodID());
+            } else {
+                out.writeUTF(request.getMethodName());
+                out.writeObject(request.getParameterTypes());
+            }
+            out.writeObject(request.getParameters());
+            endEncode(outputStream);
+            encoded = true;
+        } finally {
+            if (!encoded) {
+                abortEncode();
+            }
+            encodeLock.unlock();
+        }
+    }
+
+    @Override
+    public InvokeRequest decodeRequest(InputStream inputStream)
+            throws SerializeException, IOException {
+        decodeLock.lock();
+        try {
+            ObjectInputStream in = beginDecode(inputStream);
+            long requestID = in.readLong();
+            String className = in.readUTF();
+            InvokeRequest request = null;
+            if (in.readBoolean()) {
+                int methodID = in.readInt();
+                Object[] parameters = (Object[]) in.readObject();
+                request = new InvokeRequest(requestID, className, methodID,
+                        parameters);
+            } else {
+                String methodName = in.readUTF();
+                String[] parameterTypes = (String[]) in.readObject();
+                Object[] parameters = (Object[]) in.readObject();
+                request = new InvokeRequest(requestID, className, methodName,
+                        parameterTypes, parameters);
+            }
+            endDecode();
+            return request;
+        } catch (ClassNotFoundException e) {
+            throw new SerializeException(e);
+        } finally {
+            decodeLock.unlock();
+        }
+    }
+
+    @Override
+    public void encodeResponse(OutputStream outputStream, InvokeResponse result)
+            throws SerializeException, IOException {
+        encodeLock.lock();
+        boolean encoded = false;
+        try {
+            beginEncode().writeObject(result);
+            endEncode(outputStream);
+            encoded = true;
+        } finally {
+            if (!encoded) {
+                abortEncode();
+            }
+            encodeLock.unlock();
+        }
+    }
+
+    @Override
+    public InvokeResponse decodeResponse(InputStream inputStream)
+            throws SerializeException, IOException {
+        decodeLock.lock();
+        try {
+            InvokeResponse response = (InvokeResponse) beginDecode(
+                    inputStream).readObject();
+            endDecode();
+            return response;
+        } catch (ClassNotFoundException e) {
+            throw new SerializeException(e);
+        } finally {
+            decodeLock.unlock();
+        }
+    }
+
+    private ObjectOutputStream beginEncode() throws IOException {
+        if (null == objOut) {
+            // the stream header goes out with the first message
+            objOut = new ClassCachingOutputStream(buffer);
+            headerPending = true;
+        } else if (headerPending) {
+            // the first message was dropped, so was the header
+            objOut = new ClassCachingOutputStream(buffer);
+        } else {
+            objOut.reset();
+        }
+        return objOut;
+    }
+
+    private void endEncode(OutputStream outputStream) throws IOException {
+        objOut.flush();
+        buffer.writeTo(outputStream);
+        buffer.reset();
+        ((ClassCachingOutputStream) objOut).commit();
+        headerPending = false;
+    }
+
+    /**
+     * drop the partially encoded message, the peer never sees it
+     */
+    private void abortEncode() {
+        if (null != objOut) {
+            try {
+                objOut.flush();
+            } catch (IOException e) {
+                // the buffer is dropped anyway
+            }
+            ((ClassCachingOutputStream) objOut).rollback();
+        }
+        buffer.reset();
+    }
+
+    private ObjectInputStream beginDecode(InputStream inputStream)
+            throws IOException {
+        // the stream ends with the message
+        frame.content = inputStream;
+        if (null == objIn) {
+            // the stream header comes with the first message
+            objIn = new ClassCachingInputStream(frame);
+        }
+        return objIn;
+    }
+
+    private void endDecode() {
+        frame.content = null;
+    }
+
+    /**
+     * writes a class descriptor only the first time, then its ID
+     */
+    private static class ClassCachingOutputStream extends ObjectOutputStream {
+        private final Map<String, Integer> classIDs = new HashMap<String, Integer>();
+
+        /**
+         * classes first written by the current message
+         */
+        private final List<String> uncommitted = new ArrayList<String>();
+
+        ClassCachingOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc)
+                throws IOException {
+            Integer id = classIDs.get(desc.getName());
+            if (null != id) {
+                writeInt(id);
+                return;
+            }
+            id = classIDs.size();
+            writeInt(id);
+            super.writeClassDescriptor(desc);
+            classIDs.put(desc.getName(), id);
+            uncommitted.add(desc.getName());
+        }
+
+        void commit() {
+            uncommitted.clear();
+        }
+
+        void rollback() {
+            for (String name: uncommitted) {
+                classIDs.remove(name);
+            }
+            uncommitted.clear();
+        }
+    }
+
+    /**
+     * reads the class descriptors written by {@link ClassCachingOutputStream}
+     * and caches the classes resolved for them
+     */
+    private static class ClassCachingInputStream extends ObjectInputStream {
+        private final List<ObjectStreamClass> descriptors = new ArrayList<ObjectStreamClass>();
+
+        private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+
+        ClassCachingInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException,
+                ClassNotFoundException {
+            int id = readInt();
+            if (id < descriptors.size()) {
+                return descriptors.get(id);
+            }
+            if (id != descriptors.size()) {
+                throw new SerializeException("unexpected class descriptor: "
+                        + id);
+            }
+            ObjectStreamClass desc = super.readClassDescriptor();
+            descriptors.add(desc);
+            return desc;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            Class<?> clazz = classes.get(desc.getName());
+            if (null == clazz) {
+                clazz = super.resolveClass(desc);
+                classes.put(desc.getName(), clazz);
+            }
+            return clazz;
+        }
+    }
+
+    /**
+     * the input of the object stream, switched to the content of each message
+     */
+    private static class FrameInputStream extends InputStream {
+        InputStream content;
+
+        @Override
+        public int read() throws IOException {
+            return null == content ? -1 : content.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return null == content ? -1 : content.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return null == content ? 0 : content.available();
+        }
+    }
+}
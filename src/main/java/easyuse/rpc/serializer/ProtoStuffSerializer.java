@@ -28,6 +28,9 @@
  ******************************************************************************/
 package easyuse.rpc.serializer;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import com.dyuproject.protostuff.LinkedBuffer;
 import com.dyuproject.protostuff.ProtostuffIOUtil;
 import com.dyuproject.protostuff.Schema;
@@ -51,7 +54,8 @@ public class ProtoStuffSerializer extends AbstractProtostuffSerializer {
     }
 
     @Override
-    protected <T> void parseObject(byte[] bytes, T template, Schema<T> schema) {
-        ProtostuffIOUtil.mergeFrom(bytes, template, schema);
+    protected <T> void parseObject(InputStream in, T template,
+            Schema<T> schema, LinkedBuffer buffer) throws IOException {
+        ProtostuffIOUtil.mergeFrom(in, template, schema, buffer);
     }
 }
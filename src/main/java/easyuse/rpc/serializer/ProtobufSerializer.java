@@ -28,6 +28,9 @@
  ******************************************************************************/
 package easyuse.rpc.serializer;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import com.dyuproject.protostuff.LinkedBuffer;
 import com.dyuproject.protostuff.ProtobufIOUtil;
 import com.dyuproject.protostuff.Schema;
@@ -51,7 +54,8 @@ public class ProtobufSerializer extends AbstractProtostuffSerializer {
     }
 
     @Override
-    protected <T> void parseObject(byte[] bytes, T template, Schema<T> schema) {
-        ProtobufIOUtil.mergeFrom(bytes, template, schema);
+    protected <T> void parseObject(InputStream in, T template,
+            Schema<T> schema, LinkedBuffer buffer) throws IOException {
+        ProtobufIOUtil.mergeFrom(in, template, schema, buffer);
     }
 }
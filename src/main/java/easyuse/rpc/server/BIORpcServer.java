@@ -32,6 +32,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -40,13 +41,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import easyuse.rpc.Logger;
 import easyuse.rpc.RpcServer;
 import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.metrics.RpcMetrics;
+import easyuse.rpc.util.ExecutorUtils;
 import easyuse.rpc.util.HandlerMapper;
 import easyuse.rpc.util.IOUtils;
 import easyuse.rpc.util.LoggerHolder;
 import easyuse.rpc.util.SocketConfig;
 
 /**
- * a simple block io rpc server
+ * a simple block io rpc server, serving every connection in its own thread
  * 
  * @author dhf
  */
@@ -58,6 +61,8 @@ public class BIORpcServer implements RpcServer {
 
     protected Map<String, Object> handlerMap;
 
+    private final RequestDispatcher dispatcher;
+
     private AtomicBoolean stopped = new AtomicBoolean(false);
 
     private ExecutorService executor = Executors.newCachedThreadPool();
@@ -68,6 +73,10 @@ public class BIORpcServer implements RpcServer {
 
     private SocketConfig socketOptions;
 
+    private Executor requestExecutor;
+
+    private RpcMetrics metrics;
+
     /**
      * tcpNoDelay: true, keepAlive: true, readTimeout: infinite
      * 
@@ -123,9 +132,69 @@ public class BIORpcServer implements RpcServer {
         }
         this.serializer = serializer;
         this.handlerMap = handlers;
+        this.dispatcher = new RequestDispatcher(handlers);
         this.socketOptions = socketOptions;
     }
 
+    /**
+     * the executor running the connection workers, must be set before the
+     * server started. The executor is shutdown when the server stopped.
+     * 
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        if (null == executor) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * serve every connection in a virtual thread, so that idle connections
+     * cost no platform thread. The cached thread pool is kept on jvms without
+     * virtual threads (before java 21). Must be set before the server
+     * started.
+     * 
+     * @param useVirtualThreads
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            setExecutor(ExecutorUtils
+                    .newVirtualThreadExecutor("eurpc-bio-server"));
+        } else {
+            setExecutor(Executors.newCachedThreadPool());
+        }
+    }
+
+    /**
+     * execute the requests pipelined on one connection concurrently in the
+     * executor, instead of one by one in the connection worker. Must be set
+     * before the server started. Use a bounded executor (
+     * {@link ExecutorUtils#newBoundedExecutor(String, int, int)}), rejected
+     * requests are answered with a {@link easyuse.rpc.ServerBusyException}.
+     * The executor is not shutdown when the server stopped.
+     * 
+     * @param requestExecutor
+     */
+    public void setRequestExecutor(Executor requestExecutor) {
+        this.requestExecutor = requestExecutor;
+    }
+
+    /**
+     * record the calls per method, must be set before the server started
+     * 
+     * @param metrics
+     *            null to record nothing
+     * @see RpcMetrics#registerMBeans()
+     */
+    public void setMetrics(RpcMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void start() throws Throwable {
         try {
@@ -162,7 +231,8 @@ public class BIORpcServer implements RpcServer {
     }
 
     protected Runnable getWorker(Socket socket) {
-        return new BIOServerWorker(serializer, handlerMap, socket);
+        return new BIOServerWorker(serializer, dispatcher, socket,
+                requestExecutor, metrics);
     }
 
 }
@@ -31,95 +31,368 @@ package easyuse.rpc.server;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
 import easyuse.rpc.Logger;
+import easyuse.rpc.ServerBusyException;
 import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.metrics.CallRecord;
+import easyuse.rpc.metrics.MethodMetrics;
+import easyuse.rpc.metrics.RpcMetrics;
+import easyuse.rpc.serializer.FrameCodec;
+import easyuse.rpc.util.BufferCache;
 import easyuse.rpc.util.IOUtils;
 import easyuse.rpc.util.LoggerHolder;
-import easyuse.rpc.util.ReflectionCache;
+import easyuse.rpc.util.SerializerUtils;
 
 /**
+ * serves one connection. Requests are read ahead of the responses, so that
+ * clients may pipeline them: they are executed one by one in the worker
+ * thread, or concurrently in the executor if one is provided. Responses are
+ * flushed once no more request is waiting in the worker thread, or no more
+ * dispatched response is waiting to be written. The responses of a
+ * request batch are written in one batch once the last is ready. The
+ * connection is closed only after the dispatched requests are answered.
+ * 
  * @author dhf
  */
 public class BIOServerWorker implements Runnable {
     private static final Logger logger = LoggerHolder
             .getLogger(BIOServerWorker.class);
 
-    private ServerSerializer serializer;
+    private FrameCodec codec;
 
-    private Map<String, Object> handlersMap;
+    private RequestDispatcher dispatcher;
 
     private Socket clientSocket;
 
+    private Executor executor;
+
+    private OutputStream output;
+
+    private RpcMetrics metrics;
+
+    /**
+     * a lock instead of a monitor, so that virtual threads are not pinned
+     * while writing
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * signalled when the last outstanding request is answered
+     */
+    private final Condition drained = writeLock.newCondition();
+
+    /**
+     * requests dispatched to the executor but not answered yet
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
     public BIOServerWorker(ServerSerializer serializer,
             Map<String, Object> handlers, Socket clientSocket) {
-        this.serializer = serializer;
-        this.handlersMap = handlers;
-        this.clientSocket = clientSocket;
+        this(serializer, new RequestDispatcher(handlers), clientSocket, null);
     }
 
-    private Object handle(InvokeRequest request) throws Throwable {
-        Method method = ReflectionCache.getMethod(request.getClassName(),
-                request.getMethodName(), request.getParameterTypes());
-        Object[] parameters = request.getParameters();
-        // get handler
-        Object handler = handlersMap.get(request.getClassName());
-        // invoke
-        Object result = method.invoke(handler, parameters);
-        return result;
+    public BIOServerWorker(ServerSerializer serializer,
+            RequestDispatcher dispatcher, Socket clientSocket,
+            Executor executor) {
+        this(serializer, dispatcher, clientSocket, executor, null);
+    }
+
+    /**
+     * @param serializer
+     * @param dispatcher
+     *            dispatch tables of the services, shared by the workers
+     * @param clientSocket
+     * @param executor
+     *            executes the pipelined requests concurrently, null to execute
+     *            them one by one in the worker thread
+     * @param metrics
+     *            records the calls, null to record nothing
+     */
+    public BIOServerWorker(ServerSerializer serializer,
+            RequestDispatcher dispatcher, Socket clientSocket,
+            Executor executor, RpcMetrics metrics) {
+        this.codec = new FrameCodec(SerializerUtils.forConnection(serializer));
+        this.dispatcher = dispatcher;
+        this.clientSocket = clientSocket;
+        this.executor = executor;
+        this.metrics = metrics;
     }
 
     @Override
     public void run() {
-        Object result = null;
         InputStream input = null;
-        OutputStream output = null;
 
-        InvokeRequest request = null;
+        List<InvokeRequest> requests = null;
         try {
             input = new BufferedInputStream(clientSocket.getInputStream());
             output = new BufferedOutputStream(clientSocket.getOutputStream());
             while (clientSocket.isConnected() && !clientSocket.isClosed()
                     && !clientSocket.isInputShutdown()
                     && !clientSocket.isOutputShutdown()) {
+                if (!awaitRequest(input)) {
+                    // client closed
+                    return;
+                }
                 try {
-                    request = serializer.decodeRequest(input);
+                    requests = codec.readRequests(input);
                 } catch (EOFException e) {
-                    // client closed
+                    // client closed in the middle of a frame
                     return;
                 }
 
-                InvokeResponse response = new InvokeResponse(
-                        request.getRequestID());
-                try {
-                    result = handle(request);
-                    response.setResult(result);
-                } catch (Throwable t) {
-                    logger.warn("handle rpc request fail! request: <{}>",
-                            new Object[] {
-                                request
-                            }, t);
-                    response.setException(t);
+                if (requests.size() > 1) {
+                    dispatch(requests);
+                } else if (null == executor) {
+                    execute(requests.get(0));
+                    // flush when no pipelined request is waiting
+                    if (input.available() <= 0) {
+                        output.flush();
+                    }
+                } else {
+                    dispatch(requests.get(0), null);
                 }
-                serializer.encodeResponse(output, response);
-                // flush response
-                output.flush();
             }
         } catch (Throwable t) {
-            logger.warn("handle rpc request fail! request: <{}>", new Object[] {
-                request
-            }, t);
+            logger.warn("handle rpc request fail! requests: <{}>",
+                    new Object[] {
+                        requests
+                    }, t);
         } finally {
+            awaitOutstanding();
             IOUtils.closeQuietly(input);
             IOUtils.closeQuietly(output);
             IOUtils.closeQuietly(clientSocket);
+            // the thread returns to the pool
+            BufferCache.release();
+        }
+    }
+
+    /**
+     * wait for the first byte of the next request, read timeouts are ignored
+     * while dispatched requests are executing
+     * 
+     * @param input
+     *            supports mark and reset
+     * @return false if the client closed the connection
+     * @throws IOException
+     */
+    private boolean awaitRequest(InputStream input) throws IOException {
+        while (true) {
+            input.mark(1);
+            try {
+                if (input.read() < 0) {
+                    return false;
+                }
+            } catch (SocketTimeoutException e) {
+                if (outstanding.get() > 0) {
+                    continue;
+                }
+                throw e;
+            }
+            input.reset();
+            return true;
+        }
+    }
+
+    /**
+     * wait until the dispatched requests are answered, so that closing the
+     * connection does not drop their responses
+     */
+    private void awaitOutstanding() {
+        writeLock.lock();
+        try {
+            while (outstanding.get() > 0) {
+                drained.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * invoke the request in the worker thread and write its response,
+     * recording the call in the metrics
+     * 
+     * @param request
+     * @throws IOException
+     *             failed to write the response
+     */
+    private void execute(InvokeRequest request) throws IOException {
+        MethodMetrics methodMetrics = callStarted(request);
+        long start = null == methodMetrics ? 0L : System.nanoTime();
+        InvokeResponse response = invoke(request);
+        long executed = System.nanoTime();
+        try {
+            codec.writeResponse(output, response);
+        } finally {
+            callCompleted(methodMetrics, request, start, executed, response);
+        }
+    }
+
+    /**
+     * invoke a dispatched or batched request and reply with its response,
+     * recording the call in the metrics
+     * 
+     * @param request
+     * @param batch
+     *            collects the response, null if the request is not batched
+     */
+    private void execute(InvokeRequest request, ResponseBatch batch) {
+        MethodMetrics methodMetrics = callStarted(request);
+        long start = null == methodMetrics ? 0L : System.nanoTime();
+        InvokeResponse response = invoke(request);
+        long executed = System.nanoTime();
+        try {
+            reply(response, batch);
+        } finally {
+            callCompleted(methodMetrics, request, start, executed, response);
+        }
+    }
+
+    /**
+     * @param request
+     * @return metrics of the method, null if no metrics are recorded
+     */
+    private MethodMetrics callStarted(InvokeRequest request) {
+        if (null == metrics) {
+            return null;
+        }
+        return dispatcher.callStarted(metrics, request);
+    }
+
+    private void callCompleted(MethodMetrics methodMetrics,
+            InvokeRequest request, long start, long executed,
+            InvokeResponse response) {
+        if (null == methodMetrics) {
+            return;
+        }
+        metrics.callCompleted(methodMetrics, CallRecord.ofServerCall(request,
+                methodMetrics.getService(), methodMetrics.getMethod(), start,
+                executed, System.nanoTime(), response.getException()));
+    }
+
+    private InvokeResponse invoke(InvokeRequest request) {
+        InvokeResponse response = new InvokeResponse(request.getRequestID());
+        try {
+            Object result = dispatcher.dispatch(request);
+            response.setResult(result);
+        } catch (Throwable t) {
+            logger.warn("handle rpc request fail! request: <{}>", new Object[] {
+                request
+            }, t);
+            response.setException(t);
+        }
+        return response;
+    }
+
+    /**
+     * execute the requests of a batch, concurrently if an executor is
+     * provided, and write their responses together
+     * 
+     * @param requests
+     */
+    private void dispatch(List<InvokeRequest> requests) {
+        // the batch is answered like one dispatched request
+        outstanding.incrementAndGet();
+        ResponseBatch batch = new ResponseBatch(requests.size()) {
+            @Override
+            protected void complete(List<InvokeResponse> completed) {
+                writeDispatchedResponses(completed);
+            }
+        };
+        for (InvokeRequest request: requests) {
+            if (null == executor) {
+                execute(request, batch);
+            } else {
+                dispatch(request, batch);
+            }
+        }
+    }
+
+    /**
+     * @param request
+     * @param batch
+     *            collects the response, null if the request is not batched
+     */
+    private void dispatch(final InvokeRequest request,
+            final ResponseBatch batch) {
+        if (null == batch) {
+            outstanding.incrementAndGet();
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(request, batch);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("rpc request rejected! request: <{}>",
+                        new Object[] {
+                            request
+                        });
+            }
+            InvokeResponse response = new InvokeResponse(
+                    request.getRequestID());
+            response.setException(new ServerBusyException(
+                    "server busy, request rejected: "
+                            + dispatcher.getTarget(request)));
+            reply(response, batch);
+        }
+    }
+
+    /**
+     * @param response
+     * @param batch
+     *            collects the response, null to write it with the other
+     *            dispatched responses
+     */
+    private void reply(InvokeResponse response, ResponseBatch batch) {
+        if (null != batch) {
+            batch.add(response);
+        } else {
+            writeDispatchedResponses(Collections.singletonList(response));
+        }
+    }
+
+    private void writeDispatchedResponses(List<InvokeResponse> responses) {
+        writeLock.lock();
+        try {
+            codec.writeResponses(output, responses);
+            // the responses waiting for the lock are flushed by the last one
+            if (!writeLock.hasQueuedThreads()) {
+                output.flush();
+            }
+        } catch (Throwable t) {
+            logger.warn("write rpc response fail! responses: <{}>",
+                    new Object[] {
+                        responses
+                    }, t);
+            IOUtils.closeQuietly(clientSocket);
+        } finally {
+            if (outstanding.decrementAndGet() == 0) {
+                drained.signalAll();
+            }
+            writeLock.unlock();
         }
     }
 }
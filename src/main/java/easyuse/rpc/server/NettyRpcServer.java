@@ -31,6 +31,8 @@ package easyuse.rpc.server;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -52,8 +54,10 @@ import org.jboss.netty.util.Timer;
 import easyuse.rpc.Logger;
 import easyuse.rpc.RpcServer;
 import easyuse.rpc.ServerSerializer;
+import easyuse.rpc.metrics.RpcMetrics;
 import easyuse.rpc.util.HandlerMapper;
 import easyuse.rpc.util.LoggerHolder;
+import easyuse.rpc.util.SerializerUtils;
 import easyuse.rpc.util.SocketConfig;
 
 /**
@@ -67,6 +71,8 @@ public class NettyRpcServer implements RpcServer {
 
     protected Map<String, Object> handlersMap;
 
+    private final RequestDispatcher dispatcher;
+
     private AtomicBoolean stopped = new AtomicBoolean(false);
 
     private ServerSerializer serializer;
@@ -77,6 +83,14 @@ public class NettyRpcServer implements RpcServer {
 
     private Timer timer;
 
+    private Executor executor;
+
+    private Map<String, Executor> serviceExecutors = new ConcurrentHashMap<String, Executor>();
+
+    private boolean deferDecoding;
+
+    private RpcMetrics metrics;
+
     /**
      * tcpNoDelay: true, keepAlive: true, readTimeout: infinite
      * 
@@ -149,10 +163,75 @@ public class NettyRpcServer implements RpcServer {
         }
         this.serializer = serializer;
         this.handlersMap = handlers;
+        this.dispatcher = new RequestDispatcher(handlers);
         this.socketOptions = socketOptions;
         this.childSocketOptions = childSocketOptions;
     }
 
+    /**
+     * execute the handler methods in the executor instead of the io threads,
+     * must be set before the server started. Use a bounded executor which
+     * rejects tasks when full (
+     * {@link easyuse.rpc.util.ExecutorUtils#newBoundedExecutor(String, int, int)}
+     * ), rejected requests are answered with a
+     * {@link easyuse.rpc.ServerBusyException}. The executor is not shutdown
+     * when the server stopped.
+     * 
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * execute the methods of one service in a dedicated executor, so that slow
+     * services do not starve the others
+     * 
+     * @param interfaceName
+     *            interface qualified name of the service
+     * @param executor
+     * @see #setExecutor(Executor)
+     */
+    public void setServiceExecutor(String interfaceName, Executor executor) {
+        if (!handlersMap.containsKey(interfaceName)) {
+            throw new IllegalArgumentException("no handler for the interface ["
+                    + interfaceName + "]");
+        }
+        if (null == executor) {
+            serviceExecutors.remove(interfaceName);
+        } else {
+            serviceExecutors.put(interfaceName, executor);
+        }
+    }
+
+    /**
+     * deserialize the requests in the executor instead of the io threads, so
+     * that large requests do not hold up the other channels of an io thread.
+     * Takes effect only with an executor, and never for connection scoped
+     * serializers. Must be set before the server started.
+     * 
+     * @param deferDecoding
+     * @see #setExecutor(Executor)
+     */
+    public void setDeferDecoding(boolean deferDecoding) {
+        this.deferDecoding = deferDecoding;
+    }
+
+    /**
+     * record the calls per method, must be set before the server started
+     * 
+     * @param metrics
+     *            null to record nothing
+     * @see RpcMetrics#registerMBeans()
+     */
+    public void setMetrics(RpcMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public RpcMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void start() throws Throwable {
         final ChannelGroup channelGroup = new DefaultChannelGroup(getClass()
@@ -173,12 +252,15 @@ public class NettyRpcServer implements RpcServer {
                             readTimeout, TimeUnit.MILLISECONDS));
                 }
 
-                pipeline.addLast("decoder",
-                        new InvokeRequestDecoder(serializer));
+                ServerSerializer channelSerializer = SerializerUtils
+                        .forConnection(serializer);
+                pipeline.addLast("decoder", new InvokeRequestDecoder(
+                        channelSerializer, deferDecoding && null != executor));
                 pipeline.addLast("encoder", new InvokeResponseEncoder(
-                        serializer));
+                        channelSerializer));
                 pipeline.addLast("handler", new NettyRpcServerHandler(
-                        handlersMap, channelGroup));
+                        dispatcher, channelGroup, executor, serviceExecutors,
+                        metrics));
                 return pipeline;
             }
         });
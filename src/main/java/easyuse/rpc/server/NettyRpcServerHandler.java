@@ -28,9 +28,13 @@
  ******************************************************************************/
 package easyuse.rpc.server;
 
-import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
@@ -41,28 +45,87 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
 import easyuse.rpc.Logger;
+import easyuse.rpc.ServerBusyException;
+import easyuse.rpc.metrics.CallRecord;
+import easyuse.rpc.metrics.MethodMetrics;
+import easyuse.rpc.metrics.RpcMetrics;
+import easyuse.rpc.serializer.Batch;
+import easyuse.rpc.serializer.Frame;
 import easyuse.rpc.util.LoggerHolder;
-import easyuse.rpc.util.ReflectionCache;
 
 /**
+ * invokes the handler methods in the io thread, or in the executor of the
+ * service if one is provided. When the executor rejects a request, it is
+ * answered with a {@link ServerBusyException} instead of being queued.
+ * <p>
+ * Requests still in their {@link Frame}s are deserialized in the executor,
+ * and invoked there too unless their service has another executor. A body
+ * failing to deserialize is answered with the failure, the channel stays
+ * open.
+ * </p>
+ * <p>
+ * With {@link RpcMetrics}, the encode time of a call is the time to encode
+ * and submit its response, the write itself is asynchronous.
+ * </p>
+ * <p>
+ * The requests of a {@link Batch} are handled one by one like the others,
+ * their responses are written in one batch once the last is ready.
+ * </p>
+ * 
  * @author dhf
  */
 public class NettyRpcServerHandler extends SimpleChannelUpstreamHandler {
     private static final Logger logger = LoggerHolder
             .getLogger(NettyRpcServerHandler.class);
 
-    private final Map<String, Object> handlersMap;
+    private final RequestDispatcher dispatcher;
 
     private final ChannelGroup channelGroups;
 
+    private final Executor executor;
+
+    private final Map<String, Executor> serviceExecutors;
+
+    private final RpcMetrics metrics;
+
     public NettyRpcServerHandler(Map<String, Object> handlersMap) {
         this(handlersMap, null);
     }
 
     public NettyRpcServerHandler(Map<String, Object> handlersMap,
             ChannelGroup channelGroups) {
-        this.handlersMap = handlersMap;
+        this(new RequestDispatcher(handlersMap), channelGroups, null, null);
+    }
+
+    public NettyRpcServerHandler(RequestDispatcher dispatcher,
+            ChannelGroup channelGroups, Executor executor,
+            Map<String, Executor> serviceExecutors) {
+        this(dispatcher, channelGroups, executor, serviceExecutors, null);
+    }
+
+    /**
+     * @param dispatcher
+     *            dispatch tables of the services, shared by the channels
+     * @param channelGroups
+     * @param executor
+     *            executes the requests of services without their own
+     *            executor, null to execute in the io thread
+     * @param serviceExecutors
+     *            key: interface qualified name, value: executor of the service
+     * @param metrics
+     *            records the calls, null to record nothing
+     */
+    public NettyRpcServerHandler(RequestDispatcher dispatcher,
+            ChannelGroup channelGroups, Executor executor,
+            Map<String, Executor> serviceExecutors, RpcMetrics metrics) {
+        if (null == serviceExecutors) {
+            serviceExecutors = Collections.emptyMap();
+        }
+        this.dispatcher = dispatcher;
         this.channelGroups = channelGroups;
+        this.executor = executor;
+        this.serviceExecutors = serviceExecutors;
+        this.metrics = metrics;
     }
 
     @Override
@@ -87,15 +150,155 @@ public class NettyRpcServerHandler extends SimpleChannelUpstreamHandler {
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
             throws Exception {
         Object msg = e.getMessage();
+        if (msg instanceof Batch) {
+            receive(e.getChannel(), (Batch<?>) msg);
+            return;
+        }
+        if (msg instanceof Frame) {
+            receive(e.getChannel(), (Frame) msg, null);
+            return;
+        }
         if (!(msg instanceof InvokeRequest)) {
             return;
         }
         InvokeRequest request = (InvokeRequest) msg;
         ctx.setAttachment(request);
+        handle(e.getChannel(), request, null, null);
+    }
+
+    private void receive(final Channel channel, Batch<?> batch) {
+        if (batch.size() == 0) {
+            return;
+        }
+        ResponseBatch responses = new ResponseBatch(batch.size()) {
+            @Override
+            protected void complete(List<InvokeResponse> completed) {
+                channel.write(new Batch<InvokeResponse>(completed));
+            }
+        };
+        for (Object msg: batch.getMessages()) {
+            if (msg instanceof Frame) {
+                receive(channel, (Frame) msg, responses);
+            } else {
+                handle(channel, (InvokeRequest) msg, null, responses);
+            }
+        }
+    }
+
+    /**
+     * @param channel
+     * @param request
+     * @param current
+     *            executor running the caller, the request is invoked in place
+     *            if it is the executor of the service as well
+     * @param batch
+     *            collects the response, null if the request is not batched
+     */
+    private void handle(final Channel channel, final InvokeRequest request,
+            Executor current, final ResponseBatch batch) {
+        Executor serviceExecutor = getExecutor(request);
+        if (null == serviceExecutor || serviceExecutor == current) {
+            invoke(channel, request, batch);
+            return;
+        }
+        try {
+            serviceExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invoke(channel, request, batch);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("rpc request rejected! request: <{}>",
+                        new Object[] {
+                            request
+                        });
+            }
+            reject(channel, request.getRequestID(), dispatcher
+                    .getTarget(request), batch);
+        }
+    }
+
+    private void receive(final Channel channel, final Frame frame,
+            final ResponseBatch batch) {
+        if (null == executor) {
+            decodeAndHandle(channel, frame, null, batch);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decodeAndHandle(channel, frame, executor, batch);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("rpc request rejected! frame: <{}>",
+                        new Object[] {
+                            frame
+                        });
+            }
+            reject(channel, frame.getRequestID(),
+                    "requestID " + frame.getRequestID(), batch);
+        }
+    }
+
+    private void decodeAndHandle(Channel channel, Frame frame,
+            Executor current, ResponseBatch batch) {
+        InvokeRequest request = null;
+        try {
+            request = (InvokeRequest) frame.decode();
+        } catch (Throwable t) {
+            logger.warn("decode rpc request fail! frame: <{}>", new Object[] {
+                frame
+            }, t);
+            InvokeResponse response = new InvokeResponse(frame.getRequestID());
+            response.setException(t);
+            reply(channel, response, batch);
+            return;
+        }
+        handle(channel, request, current, batch);
+    }
+
+    private void reject(Channel channel, long requestID, String target,
+            ResponseBatch batch) {
+        InvokeResponse response = new InvokeResponse(requestID);
+        response.setException(new ServerBusyException(
+                "server busy, request rejected: " + target));
+        reply(channel, response, batch);
+    }
 
+    private void reply(Channel channel, InvokeResponse response,
+            ResponseBatch batch) {
+        if (null == batch) {
+            channel.write(response);
+        } else {
+            batch.add(response);
+        }
+    }
+
+    private Executor getExecutor(InvokeRequest request) {
+        Executor serviceExecutor = serviceExecutors.get(request
+                .getClassName());
+        if (null != serviceExecutor) {
+            return serviceExecutor;
+        }
+        return executor;
+    }
+
+    private void invoke(Channel channel, InvokeRequest request,
+            ResponseBatch batch) {
+        MethodMetrics methodMetrics = null;
+        long start = 0L;
+        if (null != metrics) {
+            methodMetrics = dispatcher.callStarted(metrics, request);
+            start = System.nanoTime();
+        }
         InvokeResponse response = new InvokeResponse(request.getRequestID());
         try {
-            Object result = handle(request);
+            Object result = dispatcher.dispatch(request);
             response.setResult(result);
         } catch (Throwable t) {
             logger.warn("handle rpc request fail! request: <{}>", new Object[] {
@@ -103,17 +306,18 @@ public class NettyRpcServerHandler extends SimpleChannelUpstreamHandler {
             }, t);
             response.setException(t);
         }
-        e.getChannel().write(response);
-    }
-
-    private Object handle(InvokeRequest request) throws Throwable {
-        Method method = ReflectionCache.getMethod(request.getClassName(),
-                request.getMethodName(), request.getParameterTypes());
-        Object[] parameters = request.getParameters();
-        // get handler
-        Object handler = handlersMap.get(request.getClassName());
-        // invoke
-        Object result = method.invoke(handler, parameters);
-        return result;
+        if (null == methodMetrics) {
+            reply(channel, response, batch);
+            return;
+        }
+        long executed = System.nanoTime();
+        try {
+            reply(channel, response, batch);
+        } finally {
+            metrics.callCompleted(methodMetrics, CallRecord.ofServerCall(
+                    request, methodMetrics.getService(),
+                    methodMetrics.getMethod(), start, executed,
+                    System.nanoTime(), response.getException()));
+        }
     }
 }
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.metrics.MethodMetrics;
+import easyuse.rpc.metrics.RpcMetrics;
+
+/**
+ * routes the requests to the dispatch tables of the services, built once for
+ * a server, so that resolving the method of a request builds no string key
+ * and involves no reflective lookup
+ * 
+ * @author dhf
+ */
+public class RequestDispatcher {
+    private final Map<String, ServiceInvoker> services = new HashMap<String, ServiceInvoker>();
+
+    /**
+     * @param handlers
+     *            key: interface qualified name, value: handler
+     */
+    public RequestDispatcher(Map<String, Object> handlers) {
+        if (null == handlers || handlers.size() == 0) {
+            throw new IllegalArgumentException("handlers not provided");
+        }
+        for (Map.Entry<String, Object> entry: handlers.entrySet()) {
+            Object handler = entry.getValue();
+            Class<?> serviceInterface = findInterface(handler.getClass(),
+                    entry.getKey());
+            if (null == serviceInterface) {
+                throw new IllegalArgumentException("handler of ["
+                        + entry.getKey() + "] does not implement it");
+            }
+            services.put(entry.getKey(), new ServiceInvoker(serviceInterface,
+                    handler));
+        }
+    }
+
+    /**
+     * @param interfaceName
+     * @return null if no handler for the interface
+     */
+    public ServiceInvoker getService(String interfaceName) {
+        return services.get(interfaceName);
+    }
+
+    /**
+     * invoke the handler method of the request
+     * 
+     * @param request
+     * @return
+     * @throws Throwable
+     *             exception thrown by the handler method
+     */
+    public Object dispatch(InvokeRequest request) throws Throwable {
+        ServiceInvoker service = services.get(request.getClassName());
+        if (null == service) {
+            throw new IllegalArgumentException("no handler for the interface ["
+                    + request.getClassName() + "]");
+        }
+        if (request.isCompact()) {
+            return service.invoke(request.getMethodID(),
+                    request.getParameters());
+        }
+        return service.invoke(request.getMethodName(),
+                request.getParameterTypes(), request.getParameters());
+    }
+
+    /**
+     * count the request in flight in the metrics of its method. Requests of
+     * unknown services or methods are counted together, so that bad requests
+     * can not flood the metrics
+     * 
+     * @param metrics
+     * @param request
+     * @return the metrics to complete the call with
+     */
+    public MethodMetrics callStarted(RpcMetrics metrics, InvokeRequest request) {
+        String methodName = getMethodName(request);
+        if (null == methodName) {
+            return metrics.callStarted(RpcMetrics.UNKNOWN, RpcMetrics.UNKNOWN);
+        }
+        return metrics.callStarted(request.getClassName(), methodName);
+    }
+
+    /**
+     * @param request
+     * @return name of the handler method of the request, null if no handler
+     *         has it
+     */
+    public String getMethodName(InvokeRequest request) {
+        ServiceInvoker service = services.get(request.getClassName());
+        if (null == service) {
+            return null;
+        }
+        try {
+            if (request.isCompact()) {
+                return service.getMethod(request.getMethodID()).getMethod()
+                        .getName();
+            }
+            return service.getMethod(request.getMethodName(),
+                    request.getParameterTypes()).getMethod().getName();
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param request
+     * @return service and method of the request for messages, the method of
+     *         a compact request no handler has is shown by its ID
+     */
+    public String getTarget(InvokeRequest request) {
+        String methodName = request.isCompact() ? getMethodName(request)
+                : request.getMethodName();
+        if (null == methodName) {
+            methodName = "#" + request.getMethodID();
+        }
+        return request.getClassName() + "." + methodName;
+    }
+
+    /**
+     * @param clazz
+     * @param name
+     * @return the interface implemented by the class, directly or through its
+     *         superclasses and super-interfaces, null if none has the name
+     */
+    private static Class<?> findInterface(Class<?> clazz, String name) {
+        for (Class<?> c = clazz; null != c; c = c.getSuperclass()) {
+            for (Class<?> iface: c.getInterfaces()) {
+                if (iface.getName().equals(name)) {
+                    return iface;
+                }
+                Class<?> found = findInterface(iface, name);
+                if (null != found) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import easyuse.rpc.InvokeResponse;
+
+/**
+ * collects the responses of a request batch, which may be executed
+ * concurrently, and hands them over together once the last one is added
+ * 
+ * @author dhf
+ */
+abstract class ResponseBatch {
+    private final AtomicReferenceArray<InvokeResponse> responses;
+
+    private final AtomicInteger added = new AtomicInteger();
+
+    private final AtomicInteger remaining;
+
+    /**
+     * @param size
+     *            number of requests in the batch
+     */
+    ResponseBatch(int size) {
+        this.responses = new AtomicReferenceArray<InvokeResponse>(size);
+        this.remaining = new AtomicInteger(size);
+    }
+
+    /**
+     * @param response
+     */
+    void add(InvokeResponse response) {
+        responses.set(added.getAndIncrement(), response);
+        if (remaining.decrementAndGet() > 0) {
+            return;
+        }
+        List<InvokeResponse> completed = new ArrayList<InvokeResponse>(
+                responses.length());
+        for (int i = 0; i < responses.length(); i++) {
+            completed.add(responses.get(i));
+        }
+        complete(completed);
+    }
+
+    /**
+     * write the responses, called once by the thread adding the last one
+     * 
+     * @param completed
+     *            in the order they were added
+     */
+    protected abstract void complete(List<InvokeResponse> completed);
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import easyuse.rpc.util.MethodIDs;
+
+/**
+ * the dispatch table of one service: the methods of the service interface,
+ * resolved once, grouped by name and indexed by method ID
+ * 
+ * @author dhf
+ */
+public class ServiceInvoker {
+    private final Class<?> serviceInterface;
+
+    private final Object handler;
+
+    private final Map<String, MethodInvoker[]> methods = new HashMap<String, MethodInvoker[]>();
+
+    /**
+     * IDs of the methods in ascending order
+     */
+    private final int[] methodIDs;
+
+    /**
+     * the methods in the order of their IDs
+     */
+    private final MethodInvoker[] methodsByID;
+
+    /**
+     * @param serviceInterface
+     * @param handler
+     *            implementation of the interface
+     */
+    public ServiceInvoker(Class<?> serviceInterface, Object handler) {
+        if (!serviceInterface.isInstance(handler)) {
+            throw new IllegalArgumentException("handler of ["
+                    + serviceInterface.getName() + "] does not implement it");
+        }
+        this.serviceInterface = serviceInterface;
+        this.handler = handler;
+
+        Method[] interfaceMethods = MethodIDs.getMethods(serviceInterface);
+        this.methodIDs = new int[interfaceMethods.length];
+        this.methodsByID = new MethodInvoker[interfaceMethods.length];
+        Map<String, List<MethodInvoker>> grouped = new HashMap<String, List<MethodInvoker>>();
+        for (int i = 0; i < interfaceMethods.length; i++) {
+            Method method = interfaceMethods[i];
+            List<MethodInvoker> overloads = grouped.get(method.getName());
+            if (null == overloads) {
+                overloads = new ArrayList<MethodInvoker>(1);
+                grouped.put(method.getName(), overloads);
+            }
+            methodIDs[i] = MethodIDs.getMethodID(method);
+            methodsByID[i] = new MethodInvoker(method);
+            overloads.add(methodsByID[i]);
+        }
+        for (Map.Entry<String, List<MethodInvoker>> entry: grouped.entrySet()) {
+            methods.put(entry.getKey(),
+                    entry.getValue().toArray(new MethodInvoker[0]));
+        }
+    }
+
+    public Class<?> getServiceInterface() {
+        return serviceInterface;
+    }
+
+    public Object getHandler() {
+        return handler;
+    }
+
+    /**
+     * invoke the handler method, exceptions thrown by the method are rethrown
+     * as is
+     * 
+     * @param methodName
+     * @param parameterTypes
+     *            qualified names of the parameter types
+     * @param parameters
+     * @return
+     * @throws Throwable
+     */
+    public Object invoke(String methodName, String[] parameterTypes,
+            Object[] parameters) throws Throwable {
+        return getMethod(methodName, parameterTypes).invoke(handler,
+                parameters);
+    }
+
+    /**
+     * invoke the handler method identified by its ID
+     * 
+     * @param methodID
+     * @param parameters
+     * @return
+     * @throws Throwable
+     * @see MethodIDs
+     */
+    public Object invoke(int methodID, Object[] parameters) throws Throwable {
+        return getMethod(methodID).invoke(handler, parameters);
+    }
+
+    /**
+     * @param methodID
+     * @return
+     * @throws NoSuchMethodException
+     */
+    public MethodInvoker getMethod(int methodID) throws NoSuchMethodException {
+        int index = Arrays.binarySearch(methodIDs, methodID);
+        if (index < 0) {
+            throw new NoSuchMethodException(serviceInterface.getName()
+                    + "#" + methodID);
+        }
+        return methodsByID[index];
+    }
+
+    /**
+     * @param methodName
+     * @param parameterTypes
+     * @return
+     * @throws NoSuchMethodException
+     */
+    public MethodInvoker getMethod(String methodName, String[] parameterTypes)
+            throws NoSuchMethodException {
+        MethodInvoker[] overloads = methods.get(methodName);
+        if (null != overloads) {
+            for (MethodInvoker overload: overloads) {
+                if (overload.matches(parameterTypes)) {
+                    return overload;
+                }
+            }
+        }
+        throw new NoSuchMethodException(serviceInterface.getName() + "."
+                + methodName);
+    }
+
+    /**
+     * one resolved method
+     * 
+     * @author dhf
+     */
+    public static class MethodInvoker {
+        private final Method method;
+
+        private final String[] parameterTypes;
+
+        MethodInvoker(Method method) {
+            this.method = method;
+            Class<?>[] parameterClasses = method.getParameterTypes();
+            this.parameterTypes = new String[parameterClasses.length];
+            for (int i = 0; i < parameterClasses.length; i++) {
+                this.parameterTypes[i] = parameterClasses[i].getName();
+            }
+            try {
+                // skip the access checks on every invocation
+                method.setAccessible(true);
+            } catch (RuntimeException e) {
+                // keep the checks
+            }
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        boolean matches(String[] types) {
+            int length = null == types ? 0 : types.length;
+            if (length != parameterTypes.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!parameterTypes[i].equals(types[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Object invoke(Object handler, Object[] parameters)
+                throws Throwable {
+            try {
+                return method.invoke(handler, parameters);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
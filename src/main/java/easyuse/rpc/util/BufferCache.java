@@ -28,22 +28,163 @@
  ******************************************************************************/
 package easyuse.rpc.util;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.dyuproject.protostuff.LinkedBuffer;
 
 /**
+ * per thread protostuff buffers which adapt to the size of the messages:
+ * the buffer of a thread grows while its messages are typically larger than
+ * it, up to {@link #MAX_SIZE}, and shrinks back when they get smaller. Larger
+ * messages still spill into chained segments which are dropped after use.
+ * <p>
+ * The per thread byte streams of the codecs ({@link #newStreams()}) are
+ * capped at {@link #MAX_SIZE} as well and released together with the buffer.
+ * </p>
+ * 
  * @author dhf
  */
 public class BufferCache {
-    private static ThreadLocal<LinkedBuffer> BUFFERS = new ThreadLocal<LinkedBuffer>() {
-        protected LinkedBuffer initialValue() {
-            return LinkedBuffer.allocate(4096);
+    public static final int MIN_SIZE = 4096;
+
+    /**
+     * upper bound of the buffer retained by a thread
+     */
+    public static final int MAX_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ThreadBuffer> BUFFERS = new ThreadLocal<ThreadBuffer>() {
+        protected ThreadBuffer initialValue() {
+            return new ThreadBuffer(MIN_SIZE);
         };
     };
 
+    /**
+     * the per thread streams, released by {@link #release()}
+     */
+    private static final List<ThreadLocal<ReusableByteArrayOutputStream>> STREAMS = new CopyOnWriteArrayList<ThreadLocal<ReusableByteArrayOutputStream>>();
+
+    private static final StripedCounter MESSAGES = new StripedCounter();
+
+    private static final StripedCounter OVERSIZED = new StripedCounter();
+
+    private static final AtomicLong RESIZES = new AtomicLong();
+
+    /**
+     * per thread byte streams, which shrink back when the messages get
+     * smaller and are never retained over {@link #MAX_SIZE}. Create them once,
+     * e.g. in a static field.
+     * 
+     * @return
+     */
+    public static ThreadLocal<ReusableByteArrayOutputStream> newStreams() {
+        ThreadLocal<ReusableByteArrayOutputStream> streams = new ThreadLocal<ReusableByteArrayOutputStream>() {
+            protected ReusableByteArrayOutputStream initialValue() {
+                return new ReusableByteArrayOutputStream(MIN_SIZE, MAX_SIZE);
+            };
+        };
+        STREAMS.add(streams);
+        return streams;
+    }
+
     public static LinkedBuffer getBuffer() {
-        LinkedBuffer buffer = BUFFERS.get();
+        LinkedBuffer buffer = BUFFERS.get().buffer;
         buffer.clear();
         return buffer;
     }
 
+    /**
+     * record the size of a message handled by the current thread, must not
+     * be called while the buffer is in use
+     * 
+     * @param size
+     */
+    public static void recordSize(int size) {
+        BUFFERS.get().recordSize(size);
+    }
+
+    /**
+     * drop the buffer and the streams of the current thread, call it before
+     * the thread goes idle for long or returns to a pool
+     */
+    public static void release() {
+        BUFFERS.remove();
+        for (ThreadLocal<ReusableByteArrayOutputStream> streams: STREAMS) {
+            streams.remove();
+        }
+    }
+
+    /**
+     * @return number of messages recorded
+     */
+    public static long getMessageCount() {
+        return MESSAGES.get();
+    }
+
+    /**
+     * @return number of messages larger than the buffer of their thread
+     */
+    public static long getOversizedCount() {
+        return OVERSIZED.get();
+    }
+
+    /**
+     * @return number of times a buffer was grown or shrunk
+     */
+    public static long getResizeCount() {
+        return RESIZES.get();
+    }
+
+    public static String getStats() {
+        return MessageFormatter.format(
+                "messages: {}, oversized: {}, resizes: {}", new Object[] {
+                    getMessageCount(), getOversizedCount(), getResizeCount()
+                });
+    }
+
+    private static class ThreadBuffer {
+        LinkedBuffer buffer;
+
+        int capacity;
+
+        /**
+         * moving average of the message sizes
+         */
+        int averageSize;
+
+        ThreadBuffer(int capacity) {
+            this.buffer = LinkedBuffer.allocate(capacity);
+            this.capacity = capacity;
+            this.averageSize = capacity / 2;
+        }
+
+        void recordSize(int size) {
+            MESSAGES.increment();
+            if (size > capacity) {
+                OVERSIZED.increment();
+            }
+            averageSize += (size - averageSize) >> 3;
+
+            int newCapacity = capacity;
+            if (averageSize > capacity && capacity < MAX_SIZE) {
+                newCapacity = Math.min(MAX_SIZE, roundUp(averageSize));
+            } else if (averageSize < capacity >> 2 && capacity > MIN_SIZE) {
+                newCapacity = Math.max(MIN_SIZE, roundUp(averageSize << 1));
+            }
+            if (newCapacity != capacity) {
+                buffer = LinkedBuffer.allocate(newCapacity);
+                capacity = newCapacity;
+                RESIZES.incrementAndGet();
+            }
+        }
+
+        private static int roundUp(int size) {
+            int n = MIN_SIZE;
+            while (n < size && n < MAX_SIZE) {
+                n <<= 1;
+            }
+            return n;
+        }
+    }
 }
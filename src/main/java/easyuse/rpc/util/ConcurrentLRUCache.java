@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a bounded concurrent cache with approximate LRU eviction. Unlike
+ * {@link LRUMap}, reads take no lock: an entry only records the tick of its
+ * last access, and when the cache grows over its size the least recently
+ * used entries are evicted in a batch by the thread which inserted the
+ * overflowing entry.
+ * 
+ * @author dhf
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentLRUCache<K, V> {
+    private final ConcurrentHashMap<K, Node<V>> map;
+
+    private final int maxSize;
+
+    /**
+     * advanced by every insertion, so that entries read since the last
+     * insertion are the most recently used
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    private final Lock evictionLock = new ReentrantLock();
+
+    private final StripedCounter hits = new StripedCounter();
+
+    private final StripedCounter misses = new StripedCounter();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            max number of entries
+     */
+    public ConcurrentLRUCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Node<V>>(
+                (int) Math.ceil((1f * maxSize) / 0.75f) + 16);
+    }
+
+    public V get(K key) {
+        Node<V> node = map.get(key);
+        if (null == node) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        long now = clock.get();
+        // avoid writing to shared entries when nothing changed
+        if (node.lastAccess != now) {
+            node.lastAccess = now;
+        }
+        return node.value;
+    }
+
+    public V put(K key, V value) {
+        Node<V> old = map.put(key, new Node<V>(value, clock.incrementAndGet()));
+        evictIfNecessary();
+        return null == old ? null : old.value;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the value already cached, or null if the value is put
+     */
+    public V putIfAbsent(K key, V value) {
+        Node<V> old = map.putIfAbsent(key, new Node<V>(value, clock
+                .incrementAndGet()));
+        if (null != old) {
+            return old.value;
+        }
+        evictIfNecessary();
+        return null;
+    }
+
+    public V remove(K key) {
+        Node<V> old = map.remove(key);
+        return null == old ? null : old.value;
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormatter.format(
+                "size: {}, maxSize: {}, hits: {}, misses: {}, evictions: {}",
+                new Object[] {
+                    size(), maxSize, getHitCount(), getMissCount(),
+                    getEvictionCount()
+                });
+    }
+
+    /**
+     * evict the least recently used eighth of the entries once the cache is
+     * full, a single thread evicts at a time and the others do not wait
+     */
+    private void evictIfNecessary() {
+        if (map.size() <= maxSize || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int size = map.size();
+            if (size <= maxSize) {
+                return;
+            }
+            // snapshot the ticks, readers keep updating them while sorting
+            List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(
+                    size + 16);
+            for (Map.Entry<K, Node<V>> entry: map.entrySet()) {
+                candidates.add(new Candidate<K, V>(entry.getKey(), entry
+                        .getValue()));
+            }
+            Collections.sort(candidates);
+            int toEvict = size - maxSize + Math.max(1, maxSize >> 3);
+            for (int i = 0; i < toEvict && i < candidates.size(); i++) {
+                Candidate<K, V> candidate = candidates.get(i);
+                if (map.remove(candidate.key, candidate.node)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static class Node<V> {
+        final V value;
+
+        volatile long lastAccess;
+
+        Node(V value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static class Candidate<K, V> implements
+            Comparable<Candidate<K, V>> {
+        final K key;
+
+        final Node<V> node;
+
+        final long lastAccess;
+
+        Candidate(K key, Node<V> node) {
+            this.key = key;
+            this.node = node;
+            this.lastAccess = node.lastAccess;
+        }
+
+        @Override
+        public int compareTo(Candidate<K, V> o) {
+            return lastAccess < o.lastAccess ? -1
+                    : (lastAccess == o.lastAccess ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author dhf
+ */
+public class ExecutorUtils {
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), null before java 21
+     */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * virtual threads are available or not
+     * 
+     * @return
+     */
+    public static boolean isVirtualThreadSupported() {
+        return null != NEW_VIRTUAL_THREAD_EXECUTOR;
+    }
+
+    /**
+     * an executor starting a virtual thread per task, falls back to a cached
+     * thread pool if virtual threads are not supported by the jvm
+     * 
+     * @param name
+     *            thread name prefix of the fallback pool
+     * @return
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        return newVirtualThreadExecutor(name, false);
+    }
+
+    /**
+     * @param name
+     *            thread name prefix of the fallback pool
+     * @param daemon
+     *            the fallback pool creates daemon threads or not, virtual
+     *            threads are always daemon threads
+     * @return
+     * @see #newVirtualThreadExecutor(String)
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name,
+            boolean daemon) {
+        if (null != NEW_VIRTUAL_THREAD_EXECUTOR) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR
+                        .invoke(null);
+            } catch (Throwable t) {
+                // fall back
+            }
+        }
+        return Executors.newCachedThreadPool(new NamedThreadFactory(name,
+                daemon));
+    }
+
+    /**
+     * a fixed size pool with a bounded queue, tasks submitted when the queue
+     * is full are rejected with a
+     * {@link java.util.concurrent.RejectedExecutionException}
+     * 
+     * @param name
+     *            thread name prefix
+     * @param threads
+     * @param queueCapacity
+     * @return
+     */
+    public static ThreadPoolExecutor newBoundedExecutor(String name,
+            int threads, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueCapacity), new NamedThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
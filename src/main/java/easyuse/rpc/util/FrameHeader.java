@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import easyuse.rpc.SerializeException;
+
+/**
+ * the fixed header in front of every message, shared by the BIO and the netty
+ * transports:
+ * 
+ * <pre>
+ *  +----------+---------+-------+------+------------+--------------+----------------+
+ *  | magic(2) | version | flags | type | serializer | requestID(8) | body length(4) |
+ *  +----------+---------+-------+------+------------+--------------+----------------+
+ * </pre>
+ * 
+ * the body of <code>body length</code> bytes follows the header. The header
+ * is enough to route, skip or drop a frame without deserializing its body.
+ * The body of a batch is a sequence of whole request or response frames, the
+ * requestID of a batch is the one of its first frame.
+ * 
+ * @author dhf
+ */
+public class FrameHeader {
+    public static final short MAGIC = (short) 0xEA5C;
+
+    public static final byte VERSION = 1;
+
+    /**
+     * length of the header in bytes
+     */
+    public static final int LENGTH = 18;
+
+    /**
+     * offset of the body length field in the header
+     */
+    public static final int BODY_LENGTH_OFFSET = 14;
+
+    public static final byte TYPE_REQUEST = 1;
+
+    public static final byte TYPE_RESPONSE = 2;
+
+    public static final byte TYPE_HEARTBEAT = 3;
+
+    public static final byte TYPE_REQUEST_BATCH = 4;
+
+    public static final byte TYPE_RESPONSE_BATCH = 5;
+
+    /**
+     * the body is compressed, it starts with the original length
+     */
+    public static final byte FLAG_COMPRESSED = 0x01;
+
+    /**
+     * the high 4 bits of the flags of a compressed frame hold the ID of its
+     * compressor
+     */
+    public static final int COMPRESSOR_SHIFT = 4;
+
+    /**
+     * largest ID of a compressor
+     */
+    public static final byte MAX_COMPRESSOR_ID = 15;
+
+    /**
+     * the serializer of the body is not known
+     */
+    public static final byte SERIALIZER_UNKNOWN = 0;
+
+    private byte version = VERSION;
+
+    private byte flags;
+
+    private byte type;
+
+    private byte serializerID;
+
+    private long requestID;
+
+    private int bodyLength;
+
+    public FrameHeader() {}
+
+    public FrameHeader(byte type, byte flags, byte serializerID,
+            long requestID, int bodyLength) {
+        this.type = type;
+        this.flags = flags;
+        this.serializerID = serializerID;
+        this.requestID = requestID;
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * read and check the header
+     * 
+     * @param in
+     * @return
+     * @throws java.io.EOFException
+     *             if the stream ends before the header
+     * @throws SerializeException
+     *             if the stream is not positioned at a valid frame
+     * @throws IOException
+     */
+    public static FrameHeader read(InputStream in) throws IOException {
+        byte[] bytes = new byte[LENGTH];
+        IOUtils.readFully(in, bytes, 0, LENGTH);
+        return decode(bytes, 0);
+    }
+
+    /**
+     * @param bytes
+     * @param offset
+     * @return
+     * @throws SerializeException
+     *             if the bytes are not a valid header
+     */
+    public static FrameHeader decode(byte[] bytes, int offset) {
+        checkMagic((short) (((bytes[offset] & 0xFF) << 8)
+                | (bytes[offset + 1] & 0xFF)));
+        FrameHeader header = new FrameHeader();
+        header.version = bytes[offset + 2];
+        if (header.version > VERSION || header.version < 1) {
+            throw new SerializeException("unsupported frame version: "
+                    + header.version);
+        }
+        header.flags = bytes[offset + 3];
+        header.type = bytes[offset + 4];
+        header.serializerID = bytes[offset + 5];
+        long requestID = 0;
+        for (int i = 0; i < 8; i++) {
+            requestID = (requestID << 8) | (bytes[offset + 6 + i] & 0xFF);
+        }
+        header.requestID = requestID;
+        header.bodyLength = ((bytes[offset + 14] & 0xFF) << 24)
+                | ((bytes[offset + 15] & 0xFF) << 16)
+                | ((bytes[offset + 16] & 0xFF) << 8)
+                | (bytes[offset + 17] & 0xFF);
+        if (header.bodyLength < 0) {
+            throw new SerializeException("illegal body length: "
+                    + header.bodyLength);
+        }
+        return header;
+    }
+
+    /**
+     * @param magic
+     *            the first two bytes of a frame
+     * @throws SerializeException
+     *             if they are not {@link #MAGIC}
+     */
+    public static void checkMagic(short magic) {
+        if (magic != MAGIC) {
+            throw new SerializeException("not a rpc frame, magic: "
+                    + Integer.toHexString(magic & 0xFFFF));
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        bytes[0] = (byte) (MAGIC >>> 8);
+        bytes[1] = (byte) MAGIC;
+        bytes[2] = version;
+        bytes[3] = flags;
+        bytes[4] = type;
+        bytes[5] = serializerID;
+        for (int i = 0; i < 8; i++) {
+            bytes[6 + i] = (byte) (requestID >>> (56 - 8 * i));
+        }
+        bytes[14] = (byte) (bodyLength >>> 24);
+        bytes[15] = (byte) (bodyLength >>> 16);
+        bytes[16] = (byte) (bodyLength >>> 8);
+        bytes[17] = (byte) bodyLength;
+        return bytes;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public void setFlags(byte flags) {
+        this.flags = flags;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * @return ID of the compressor of a compressed body
+     */
+    public byte getCompressorID() {
+        return (byte) ((flags & 0xFF) >>> COMPRESSOR_SHIFT);
+    }
+
+    /**
+     * @param compressorID
+     * @return flags of a frame compressed by the compressor
+     */
+    public static byte compressedFlags(byte compressorID) {
+        return (byte) (FLAG_COMPRESSED | (compressorID << COMPRESSOR_SHIFT));
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public void setType(byte type) {
+        this.type = type;
+    }
+
+    public byte getSerializerID() {
+        return serializerID;
+    }
+
+    public void setSerializerID(byte serializerID) {
+        this.serializerID = serializerID;
+    }
+
+    public long getRequestID() {
+        return requestID;
+    }
+
+    public void setRequestID(long requestID) {
+        this.requestID = requestID;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    public void setBodyLength(int bodyLength) {
+        this.bodyLength = bodyLength;
+    }
+
+    @Override
+    public String toString() {
+        return MessageFormatter.format(
+                "version: {}, flags: {}, type: {}, serializerID: {}, "
+                        + "requestID: {}, bodyLength: {}", new Object[] {
+                    version, flags, type, serializerID, requestID, bodyLength
+                });
+    }
+}
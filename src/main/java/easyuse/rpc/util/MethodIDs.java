@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.util;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * numeric IDs of the interface methods, derived from the methods themselves
+ * so that client and server agree on them without negotiation: the ID of a
+ * method is a hash of its name and parameter types. Adding or removing other
+ * methods of the interface does not change it, and a method whose signature
+ * changed is not found instead of another one being invoked.
+ * 
+ * @author dhf
+ */
+public class MethodIDs {
+    private static final ConcurrentMap<Class<?>, Method[]> METHODS_CACHE = new ConcurrentHashMap<Class<?>, Method[]>();
+
+    private static final ConcurrentMap<Method, Integer> ID_CACHE = new ConcurrentHashMap<Method, Integer>();
+
+    private static final Comparator<Method> ID_ORDER = new Comparator<Method>() {
+        @Override
+        public int compare(Method m1, Method m2) {
+            int id1 = getMethodID(m1);
+            int id2 = getMethodID(m2);
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param serviceInterface
+     * @return methods of the interface ordered by ID, methods inherited with
+     *         the same signature from several interfaces only once. Do not
+     *         modify.
+     * @throws IllegalArgumentException
+     *             if two methods of the interface have the same ID
+     */
+    public static Method[] getMethods(Class<?> serviceInterface) {
+        Method[] methods = METHODS_CACHE.get(serviceInterface);
+        if (null == methods) {
+            List<Method> sorted = new ArrayList<Method>();
+            Collections.addAll(sorted, serviceInterface.getMethods());
+            Collections.sort(sorted, ID_ORDER);
+            for (int i = sorted.size() - 1; i > 0; i--) {
+                Method method = sorted.get(i);
+                Method previous = sorted.get(i - 1);
+                if (getMethodID(method) != getMethodID(previous)) {
+                    continue;
+                }
+                if (!getSignature(method).equals(getSignature(previous))) {
+                    throw new IllegalArgumentException("methods ["
+                            + previous + "] and [" + method
+                            + "] have the same ID, rename one of them");
+                }
+                sorted.remove(i);
+            }
+            methods = sorted.toArray(new Method[sorted.size()]);
+            Method[] old = METHODS_CACHE.putIfAbsent(serviceInterface, methods);
+            if (null != old) {
+                methods = old;
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * @param method
+     *            method of the service interface
+     * @return ID of the method
+     */
+    public static int getMethodID(Method method) {
+        Integer id = ID_CACHE.get(method);
+        if (null == id) {
+            byte[] digest = md5(getSignature(method));
+            id = ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16)
+                    | ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+            ID_CACHE.putIfAbsent(method, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param method
+     * @return name and qualified parameter type names, e.g.
+     *         <code>add(int,java.lang.String)</code>
+     */
+    private static String getSignature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName());
+        signature.append('(');
+        Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            signature.append(types[i].getName());
+        }
+        return signature.append(')').toString();
+    }
+
+    private static byte[] md5(String signature) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(
+                    signature.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            // every jvm provides md5
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
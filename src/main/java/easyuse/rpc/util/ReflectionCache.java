@@ -38,10 +38,10 @@ import java.util.Map;
 public class ReflectionCache {
     private static final Map<String, Class<?>> PRIMITIVE_CLASS = new HashMap<String, Class<?>>();
 
-    private static final LRUMap<String, Class<?>> CLASS_CACHE = new LRUMap<String, Class<?>>(
+    private static final ConcurrentLRUCache<String, Class<?>> CLASS_CACHE = new ConcurrentLRUCache<String, Class<?>>(
             128);
 
-    private static final LRUMap<String, Method> METHOD_CACHE = new LRUMap<String, Method>(
+    private static final ConcurrentLRUCache<String, Method> METHOD_CACHE = new ConcurrentLRUCache<String, Method>(
             1024);
     static {
         PRIMITIVE_CLASS.put("boolean", boolean.class);
@@ -54,7 +54,9 @@ public class ReflectionCache {
         PRIMITIVE_CLASS.put("double", double.class);
         PRIMITIVE_CLASS.put("void", void.class);
 
-        CLASS_CACHE.putAll(PRIMITIVE_CLASS);
+        for (Map.Entry<String, Class<?>> entry: PRIMITIVE_CLASS.entrySet()) {
+            CLASS_CACHE.put(entry.getKey(), entry.getValue());
+        }
     }
 
     public static Class<?> getClass(String className)
@@ -63,18 +65,13 @@ public class ReflectionCache {
         if (null != clazz) {
             return clazz;
         }
-        synchronized (CLASS_CACHE) {
-            if (null == CLASS_CACHE.get(className)) {
-                clazz = PRIMITIVE_CLASS.get(className);
-                if (null == clazz) {
-                    clazz = Class.forName(className);
-                }
-                CLASS_CACHE.put(className, clazz);
-                return clazz;
-            } else {
-                return CLASS_CACHE.get(className);
-            }
+        clazz = PRIMITIVE_CLASS.get(className);
+        if (null == clazz) {
+            clazz = Class.forName(className);
         }
+        // loading twice is harmless, keep the first one
+        Class<?> old = CLASS_CACHE.putIfAbsent(className, clazz);
+        return null == old ? clazz : old;
     }
 
     public static Method getMethod(String className, String methodName,
@@ -86,21 +83,29 @@ public class ReflectionCache {
         if (null != method) {
             return method;
         }
-        synchronized (METHOD_CACHE) {
-            if (null == METHOD_CACHE.get(key)) {
-                Class<?> clazz = getClass(className);
-                Class<?>[] parameterClasses = new Class<?>[parameterTypes.length];
-                for (int i = 0; i < parameterClasses.length; i++) {
-                    parameterClasses[i] = getClass(parameterTypes[i]);
-                }
-
-                method = clazz.getMethod(methodName, parameterClasses);
-                METHOD_CACHE.put(key, method);
-                return method;
-            } else {
-                return METHOD_CACHE.get(key);
-            }
+        Class<?> clazz = getClass(className);
+        Class<?>[] parameterClasses = new Class<?>[parameterTypes.length];
+        for (int i = 0; i < parameterClasses.length; i++) {
+            parameterClasses[i] = getClass(parameterTypes[i]);
         }
+
+        method = clazz.getMethod(methodName, parameterClasses);
+        Method old = METHOD_CACHE.putIfAbsent(key, method);
+        return null == old ? method : old;
+    }
+
+    /**
+     * @return statistics of the class cache
+     */
+    public static String getClassCacheStats() {
+        return CLASS_CACHE.toString();
+    }
+
+    /**
+     * @return statistics of the method cache
+     */
+    public static String getMethodCacheStats() {
+        return METHOD_CACHE.toString();
     }
 
     private static String join(String[] strs, String seperator) {
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * a byte array output stream whose buffer is kept across messages, unless it
+ * grew over a limit or the messages got much smaller than it: like the
+ * buffers of {@link BufferCache}, it shrinks back once the moving average of
+ * the message sizes falls below a quarter of it
+ * 
+ * @author dhf
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+    private final int initialSize;
+
+    private final int maxRetainedSize;
+
+    /**
+     * moving average of the sizes written between resets
+     */
+    private int averageSize;
+
+    /**
+     * @param initialSize
+     * @param maxRetainedSize
+     *            a larger buffer is dropped by {@link #reset()}
+     */
+    public ReusableByteArrayOutputStream(int initialSize, int maxRetainedSize) {
+        super(initialSize);
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    /**
+     * @return the internal buffer without copying it, valid up to
+     *         {@link #size()} until the next write
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    @Override
+    public synchronized void reset() {
+        if (averageSize == 0) {
+            averageSize = count;
+        } else if (count > 0) {
+            averageSize += (count - averageSize) >> 3;
+        }
+        if (buf.length > maxRetainedSize) {
+            buf = new byte[initialSize];
+        } else if (buf.length > initialSize && averageSize < buf.length >> 2) {
+            buf = new byte[Math.max(initialSize, Math.min(maxRetainedSize,
+                    averageSize << 1))];
+        }
+        count = 0;
+    }
+}
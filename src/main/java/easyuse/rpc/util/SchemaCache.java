@@ -28,6 +28,18 @@
  ******************************************************************************/
 package easyuse.rpc.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import com.dyuproject.protostuff.Schema;
 import com.dyuproject.protostuff.runtime.RuntimeSchema;
 
@@ -35,28 +47,86 @@ import easyuse.rpc.InvokeRequest;
 import easyuse.rpc.InvokeResponse;
 
 /**
+ * protostuff schemas. Types of the services should be registered at startup
+ * ({@link #registerService(Class)}), so that their schemas are built before
+ * the first request instead of lazily on the request path.
+ * 
  * @author dhf
  */
 public class SchemaCache {
-    private static final LRUMap<String, Schema<?>> SCHEMA_CACHE = new LRUMap<String, Schema<?>>(
+    private static final ConcurrentLRUCache<String, Schema<?>> SCHEMA_CACHE = new ConcurrentLRUCache<String, Schema<?>>(
             4096);
 
+    /**
+     * registered types, never evicted
+     */
+    private static final ConcurrentMap<Class<?>, Schema<?>> REGISTERED = new ConcurrentHashMap<Class<?>, Schema<?>>();
+
+    /**
+     * build and keep the schema of the type
+     * 
+     * @param clazz
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Schema<T> register(Class<T> clazz) {
+        Schema<T> schema = (Schema<T>) REGISTERED.get(clazz);
+        if (null == schema) {
+            schema = RuntimeSchema.getSchema(clazz);
+            REGISTERED.put(clazz, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * register the types of the parameters and return values of the service
+     * methods, including the types of their fields and type arguments
+     * 
+     * @param serviceInterface
+     */
+    public static void registerService(Class<?> serviceInterface) {
+        if (!serviceInterface.isInterface()) {
+            throw new IllegalArgumentException(serviceInterface.getName()
+                    + " is not an interface");
+        }
+        Set<Class<?>> types = new HashSet<Class<?>>();
+        for (Method method: serviceInterface.getMethods()) {
+            for (Type type: method.getGenericParameterTypes()) {
+                collectTypes(type, types);
+            }
+            collectTypes(method.getGenericReturnType(), types);
+        }
+        for (Class<?> type: types) {
+            register(type);
+        }
+    }
+
+    public static boolean isRegistered(Class<?> clazz) {
+        return REGISTERED.containsKey(clazz);
+    }
+
     @SuppressWarnings("unchecked")
     public static <T> Schema<T> getSchema(Class<T> clazz) {
+        Schema<T> registered = (Schema<T>) REGISTERED.get(clazz);
+        if (null != registered) {
+            return registered;
+        }
         String className = clazz.getName();
         Schema<T> schema = (Schema<T>) SCHEMA_CACHE.get(className);
         if (null != schema) {
             return schema;
         }
-        synchronized (SCHEMA_CACHE) {
-            if (null == SCHEMA_CACHE.get(className)) {
-                schema = RuntimeSchema.getSchema(clazz);
-                SCHEMA_CACHE.put(className, schema);
-                return schema;
-            } else {
-                return (Schema<T>) SCHEMA_CACHE.get(className);
-            }
-        }
+        // RuntimeSchema caches the schemas itself, creating twice is harmless
+        schema = RuntimeSchema.getSchema(clazz);
+        Schema<T> old = (Schema<T>) SCHEMA_CACHE.putIfAbsent(className, schema);
+        return null == old ? schema : old;
+    }
+
+    /**
+     * @return statistics of the schema cache
+     */
+    public static String getStats() {
+        return SCHEMA_CACHE.toString();
     }
 
     public static Schema<InvokeRequest> getSchema(InvokeRequest request) {
@@ -64,7 +134,7 @@ public class SchemaCache {
         Object[] parameters = request.getParameters();
         if (null != parameters && parameters.length > 0) {
             for (Object param: parameters) {
-                if (null != param) {
+                if (null != param && !isRegistered(param.getClass())) {
                     getSchema(param.getClass());
                 }
             }
@@ -77,9 +147,57 @@ public class SchemaCache {
         if (response.getException() != null) {
             getSchema(response.getException().getClass());
         }
-        if (response.getResult() != null) {
+        if (response.getResult() != null
+                && !isRegistered(response.getResult().getClass())) {
             getSchema(response.getResult().getClass());
         }
         return schema;
     }
+
+    /**
+     * collect the concrete pojo types reachable from the type
+     */
+    private static void collectTypes(Type type, Set<Class<?>> types) {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            collectTypes(parameterized.getRawType(), types);
+            for (Type argument: parameterized.getActualTypeArguments()) {
+                collectTypes(argument, types);
+            }
+        } else if (type instanceof GenericArrayType) {
+            collectTypes(((GenericArrayType) type).getGenericComponentType(),
+                    types);
+        } else if (type instanceof WildcardType) {
+            for (Type bound: ((WildcardType) type).getUpperBounds()) {
+                collectTypes(bound, types);
+            }
+        } else if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            while (clazz.isArray()) {
+                clazz = clazz.getComponentType();
+            }
+            if (!isPojo(clazz) || !types.add(clazz)) {
+                return;
+            }
+            for (Class<?> c = clazz; null != c && isPojo(c); c = c
+                    .getSuperclass()) {
+                for (Field field: c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers)
+                            && !Modifier.isTransient(modifiers)) {
+                        collectTypes(field.getGenericType(), types);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isPojo(Class<?> clazz) {
+        if (clazz.isPrimitive() || clazz.isInterface() || clazz.isEnum()
+                || Modifier.isAbstract(clazz.getModifiers())) {
+            return false;
+        }
+        String name = clazz.getName();
+        return !name.startsWith("java.") && !name.startsWith("javax.");
+    }
 }
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.cluster;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.RpcConnection;
+import easyuse.rpc.RpcConnectionFactory;
+
+/**
+ * @author dhf
+ */
+public class ClusterRpcConnectionFactoryTest extends TestCase {
+    private FakeServer a;
+
+    private FakeServer b;
+
+    private Endpoint endpointA;
+
+    private Endpoint endpointB;
+
+    private ClusterRpcConnectionFactory cluster;
+
+    @Override
+    protected void setUp() throws Exception {
+        a = new FakeServer("a");
+        b = new FakeServer("b");
+        endpointA = new Endpoint("a", a);
+        endpointB = new Endpoint("b", b);
+        cluster = new ClusterRpcConnectionFactory(Arrays.asList(endpointA,
+                endpointB), new RoundRobinLoadBalancer());
+        cluster.setMaxFailures(2);
+        cluster.setEjectionTime(60000L);
+    }
+
+    /**
+     * @return name of the server answering the call
+     */
+    private String call() throws Throwable {
+        RpcConnection connection = cluster.getConnection();
+        try {
+            InvokeResponse response = connection
+                    .sendRequest(new InvokeRequest());
+            return (String) response.getResult();
+        } finally {
+            cluster.recycle(connection);
+        }
+    }
+
+    public void testEjectOnConnectFailures() throws Throwable {
+        a.down = true;
+        for (int i = 0; i < 10; i++) {
+            assertEquals("b", call());
+        }
+        assertTrue(endpointA.isEjected());
+        assertFalse(endpointB.isEjected());
+        // no connection is attempted to an ejected endpoint
+        assertEquals(2, a.connects.get());
+        assertEquals(0, endpointA.getOutstanding());
+    }
+
+    public void testEjectOnCallFailures() throws Throwable {
+        a.failing = true;
+        int failures = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                assertEquals("b", call());
+            } catch (IOException e) {
+                failures++;
+            }
+        }
+        assertEquals(2, failures);
+        assertTrue(endpointA.isEjected());
+        assertEquals(0, endpointA.getOutstanding());
+        assertEquals(0, endpointB.getOutstanding());
+    }
+
+    public void testRemoteExceptionIsNoFailure() throws Throwable {
+        a.throwing = true;
+        for (int i = 0; i < 10; i++) {
+            call();
+        }
+        assertFalse(endpointA.isEjected());
+        assertEquals(0, endpointA.getConsecutiveFailures());
+    }
+
+    public void testProbe() throws Throwable {
+        cluster.setEjectionTime(200L);
+        a.down = true;
+        while (!endpointA.isEjected()) {
+            assertEquals("b", call());
+        }
+        int connects = a.connects.get();
+
+        // one call probes the endpoint, the failed probe ejects it again
+        Thread.sleep(300L);
+        assertEquals("b", call());
+        assertEquals(connects + 1, a.connects.get());
+        assertTrue(endpointA.isEjected());
+        assertEquals("b", call());
+        assertEquals(connects + 1, a.connects.get());
+
+        // the successful probe brings it back
+        a.down = false;
+        Thread.sleep(300L);
+        assertEquals("a", call());
+        assertFalse(endpointA.isEjected());
+        assertEquals(0, endpointA.getConsecutiveFailures());
+    }
+
+    public void testAllEjected() throws Throwable {
+        cluster.setMaxFailures(1);
+        a.down = true;
+        b.down = true;
+        try {
+            call();
+            fail("no server up");
+        } catch (ConnectException expected) {}
+        assertTrue(endpointA.isEjected());
+        assertTrue(endpointB.isEjected());
+
+        // every endpoint is ejected, the calls try them all anyway
+        b.down = false;
+        assertEquals("b", call());
+        assertFalse(endpointB.isEjected());
+    }
+
+    private static class FakeServer implements RpcConnectionFactory {
+        final String name;
+
+        final AtomicInteger connects = new AtomicInteger();
+
+        /**
+         * refuses the connections
+         */
+        volatile boolean down;
+
+        /**
+         * the calls fail
+         */
+        volatile boolean failing;
+
+        /**
+         * the remote methods throw
+         */
+        volatile boolean throwing;
+
+        FakeServer(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public RpcConnection getConnection() throws Throwable {
+            return new RpcConnection() {
+                private boolean connected;
+
+                @Override
+                public InvokeResponse sendRequest(InvokeRequest request)
+                        throws Throwable {
+                    if (failing) {
+                        throw new IOException("connection reset: " + name);
+                    }
+                    InvokeResponse response = new InvokeResponse(request
+                            .getRequestID());
+                    if (throwing) {
+                        response.setException(new IllegalStateException(name));
+                    } else {
+                        response.setResult(name);
+                    }
+                    return response;
+                }
+
+                @Override
+                public void connect() throws Throwable {
+                    connects.incrementAndGet();
+                    if (down) {
+                        throw new ConnectException("connection refused: "
+                                + name);
+                    }
+                    connected = true;
+                }
+
+                @Override
+                public void close() throws Throwable {
+                    connected = false;
+                }
+
+                @Override
+                public boolean isConnected() {
+                    return connected;
+                }
+
+                @Override
+                public boolean isClosed() {
+                    return !connected;
+                }
+            };
+        }
+
+        @Override
+        public void recycle(RpcConnection connection) throws Throwable {
+            connection.close();
+        }
+    }
+}
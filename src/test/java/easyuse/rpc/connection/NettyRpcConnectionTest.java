@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.connection;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+
+import easyuse.rpc.InvokeFuture;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.serializer.ProtoStuffSerializer;
+import easyuse.rpc.server.NettyRpcServer;
+import easyuse.rpc.util.SocketConfig;
+
+/**
+ * @author dhf
+ */
+public class NettyRpcConnectionTest extends TestCase {
+    public interface EchoService {
+        String echo(String text);
+
+        String sleep(String text, long millis);
+    }
+
+    public static class EchoServiceImpl implements EchoService {
+        @Override
+        public String echo(String text) {
+            return text;
+        }
+
+        @Override
+        public String sleep(String text, long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return text;
+        }
+    }
+
+    private int port;
+
+    private NettyRpcServer server;
+
+    private ExecutorService executor;
+
+    private NettyRpcConnection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        executor = Executors.newCachedThreadPool();
+        server = new NettyRpcServer(port, ProtoStuffSerializer.getInstance(),
+                new EchoServiceImpl());
+        server.setExecutor(executor);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        awaitListening();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            if (null != connection) {
+                connection.close();
+            }
+            server.stop();
+        } catch (Throwable t) {
+            throw new Exception(t);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void awaitListening() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20L);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private NettyRpcConnection connect(int readTimeout) throws Throwable {
+        connection = new NettyRpcConnection("127.0.0.1", port,
+                ProtoStuffSerializer.getInstance(), new SocketConfig()
+                        .setTcpNoDelay(true).setReadTimeout(readTimeout));
+        connection.connect();
+        return connection;
+    }
+
+    private static InvokeRequest echo(long requestID, String text) {
+        return newRequest(requestID, "echo", new String[] {
+            String.class.getName()
+        }, new Object[] {
+            text
+        });
+    }
+
+    private static InvokeRequest sleep(long requestID, String text,
+            long millis) {
+        return newRequest(requestID, "sleep", new String[] {
+                String.class.getName(), long.class.getName()
+        }, new Object[] {
+                text, millis
+        });
+    }
+
+    private static InvokeRequest newRequest(long requestID, String method,
+            String[] parameterTypes, Object[] parameters) {
+        InvokeRequest request = new InvokeRequest();
+        request.setRequestID(requestID);
+        request.setClassName(EchoService.class.getName());
+        request.setMethodName(method);
+        request.setParameterTypes(parameterTypes);
+        request.setParameters(parameters);
+        return request;
+    }
+
+    public void testResponsesRoutedByRequestID() throws Throwable {
+        connect(0);
+        InvokeFuture slow = connection.sendRequestAsync(sleep(0L, "slow",
+                500L));
+        List<InvokeFuture> futures = new ArrayList<InvokeFuture>();
+        for (int i = 1; i <= 100; i++) {
+            futures.add(connection.sendRequestAsync(echo(i, "echo-" + i)));
+        }
+        for (int i = 1; i <= 100; i++) {
+            InvokeResponse response = futures.get(i - 1).get(5L,
+                    TimeUnit.SECONDS);
+            assertEquals(i, response.getRequestID());
+            assertEquals("echo-" + i, response.getResult());
+        }
+        // answered out of order, the slow call does not hold up the others
+        assertFalse(slow.isDone());
+        assertEquals("slow", slow.get(5L, TimeUnit.SECONDS).getResult());
+        assertEquals(0, connection.getPendingRequests());
+    }
+
+    public void testDuplicatedRequestID() throws Throwable {
+        connect(0);
+        InvokeFuture first = connection.sendRequestAsync(sleep(1L, "first",
+                200L));
+        try {
+            connection.sendRequestAsync(echo(1L, "second"));
+            fail("duplicated requestID sent");
+        } catch (IllegalStateException expected) {}
+        assertEquals("first", first.get(5L, TimeUnit.SECONDS).getResult());
+    }
+
+    public void testRequestTimeout() throws Throwable {
+        connect(300);
+        InvokeFuture slow = connection.sendRequestAsync(sleep(0L, "slow",
+                3000L));
+        // the other calls keep the channel busy, the slow one times out
+        for (int i = 1; i <= 10; i++) {
+            InvokeResponse response = connection.sendRequest(echo(i, "echo"));
+            assertEquals("echo", response.getResult());
+            Thread.sleep(50L);
+        }
+        try {
+            slow.awaitResponse();
+            fail("no timeout");
+        } catch (SocketTimeoutException expected) {}
+        assertTrue(connection.isConnected());
+        assertEquals(0, connection.getPendingRequests());
+    }
+
+    public void testCloseFailsPendingRequests() throws Throwable {
+        connect(0);
+        InvokeFuture pending = connection.sendRequestAsync(sleep(0L,
+                "pending", 3000L));
+        connection.close();
+        assertTrue(pending.isDone());
+        assertTrue(pending.getCause() instanceof IOException);
+        assertEquals(0, connection.getPendingRequests());
+        try {
+            connection.sendRequestAsync(echo(1L, "closed"));
+            fail("sent on a closed connection");
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testLateEventsOfReplacedChannel() throws Throwable {
+        connect(0);
+        Channel replaced = getChannel(connection);
+        connection.close();
+        connection.connect();
+        assertNotSame(replaced, getChannel(connection));
+
+        InvokeFuture pending = connection.sendRequestAsync(sleep(0L,
+                "pending", 300L));
+        Channels.fireExceptionCaught(replaced, new IOException("late"));
+        Channels.fireChannelClosed(replaced);
+
+        assertTrue(connection.isConnected());
+        assertEquals("pending", pending.get(5L, TimeUnit.SECONDS).getResult());
+        assertEquals("echo", connection.sendRequest(echo(1L, "echo"))
+                .getResult());
+    }
+
+    private static Channel getChannel(NettyRpcConnection connection)
+            throws Exception {
+        Field field = NettyRpcConnection.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        return (Channel) field.get(connection);
+    }
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2012, dhf.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ ******************************************************************************/
+package easyuse.rpc.serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import easyuse.rpc.InvokeRequest;
+import easyuse.rpc.InvokeResponse;
+import easyuse.rpc.SerializeException;
+import easyuse.rpc.util.FrameHeader;
+import easyuse.rpc.util.IOUtils;
+
+/**
+ * @author dhf
+ */
+public class FrameCodecTest extends TestCase {
+    private static InvokeRequest newRequest(long requestID, String text) {
+        InvokeRequest request = new InvokeRequest();
+        request.setRequestID(requestID);
+        request.setClassName("easyuse.rpc.EchoService");
+        request.setMethodName("echo");
+        request.setParameterTypes(new String[] {
+            String.class.getName()
+        });
+        request.setParameters(new Object[] {
+            text
+        });
+        return request;
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder sb = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+
+    private static void assertRequest(InvokeRequest expected,
+            InvokeRequest actual) {
+        assertEquals(expected.getRequestID(), actual.getRequestID());
+        assertEquals(expected.getClassName(), actual.getClassName());
+        assertEquals(expected.getMethodName(), actual.getMethodName());
+        assertEquals(expected.getMethodID(), actual.getMethodID());
+        assertEquals(Arrays.asList(expected.getParameters()), Arrays
+                .asList(actual.getParameters()));
+    }
+
+    public void testRequest() throws IOException {
+        Object[] serializers = {
+                JDKObjectSerializer.getInstance(),
+                ProtoStuffSerializer.getInstance(),
+                ProtobufSerializer.getInstance(), new GraphSerializer()
+        };
+        for (Object serializer: serializers) {
+            FrameCodec codec = new FrameCodec(serializer);
+            InvokeRequest request = newRequest(Long.MAX_VALUE, "hello");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.writeRequest(out, request);
+
+            FrameHeader header = FrameHeader.decode(out.toByteArray(), 0);
+            assertEquals(FrameHeader.TYPE_REQUEST, header.getType());
+            assertEquals(codec.getSerializerID(), header.getSerializerID());
+            assertEquals(Long.MAX_VALUE, header.getRequestID());
+            assertEquals(out.size() - FrameHeader.LENGTH, header
+                    .getBodyLength());
+            assertRequest(request, codec.readRequest(new ByteArrayInputStream(
+                    out.toByteArray())));
+        }
+    }
+
+    public void testCompactRequest() throws IOException {
+        FrameCodec codec = new FrameCodec(ProtoStuffSerializer.getInstance());
+        InvokeRequest request = newRequest(7L, "hello");
+        request.setMethodName(null);
+        request.setParameterTypes(null);
+        request.setMethodID(0x7EADBEEF);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeRequest(out, request);
+
+        InvokeRequest decoded = codec.readRequest(new ByteArrayInputStream(out
+                .toByteArray()));
+        assertTrue(decoded.isCompact());
+        assertRequest(request, decoded);
+    }
+
+    public void testResponse() throws IOException {
+        FrameCodec codec = new FrameCodec(JDKObjectSerializer.getInstance());
+        InvokeResponse result = new InvokeResponse(1L);
+        result.setResult("world");
+        InvokeResponse failure = new InvokeResponse(2L);
+        failure.setException(new IllegalStateException("boom"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeResponse(out, result);
+        codec.writeResponse(out, failure);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        InvokeResponse decoded = codec.readResponse(in);
+        assertEquals(1L, decoded.getRequestID());
+        assertEquals("world", decoded.getResult());
+        decoded = codec.readResponse(in);
+        assertEquals(2L, decoded.getRequestID());
+        assertTrue(decoded.getException() instanceof IllegalStateException);
+        assertEquals("boom", decoded.getException().getMessage());
+    }
+
+    public void testBatch() throws IOException {
+        FrameCodec codec = new FrameCodec(ProtoStuffSerializer.getInstance());
+        List<InvokeRequest> requests = new ArrayList<InvokeRequest>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(newRequest(100L + i, "request-" + i));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeRequests(out, requests);
+
+        FrameHeader header = FrameHeader.decode(out.toByteArray(), 0);
+        assertEquals(FrameHeader.TYPE_REQUEST_BATCH, header.getType());
+        assertEquals(100L, header.getRequestID());
+        List<InvokeRequest> decoded = codec.readRequests(new ByteArrayInputStream(
+                out.toByteArray()));
+        assertEquals(requests.size(), decoded.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertRequest(requests.get(i), decoded.get(i));
+        }
+    }
+
+    public void testEmptyBatch() throws IOException {
+        FrameCodec codec = new FrameCodec(ProtoStuffSerializer.getInstance());
+        try {
+            codec.writeRequests(new ByteArrayOutputStream(), Collections
+                    .<InvokeRequest> emptyList());
+            fail("empty batch written");
+        } catch (IllegalArgumentException expected) {}
+
+        byte[] frame = new FrameHeader(FrameHeader.TYPE_REQUEST_BATCH,
+                (byte) 0, codec.getSerializerID(), 1L, 0).toBytes();
+        try {
+            codec.readRequests(new ByteArrayInputStream(frame));
+            fail("empty batch read");
+        } catch (SerializeException expected) {}
+    }
+
+    public void testSkipUnknownFrames() throws IOException {
+        FrameCodec codec = new FrameCodec(ProtoStuffSerializer.getInstance());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameHeader(FrameHeader.TYPE_HEARTBEAT, (byte) 0, codec
+                .getSerializerID(), 0L, 0).write(out);
+        new FrameHeader((byte) 99, (byte) 0, codec.getSerializerID(), 0L, 3)
+                .write(out);
+        out.write(new byte[3]);
+        InvokeRequest request = newRequest(5L, "hello");
+        codec.writeRequest(out, request);
+
+        assertRequest(request, codec.readRequest(new ByteArrayInputStream(out
+                .toByteArray())));
+    }
+
+    public void testCompressed() throws IOException {
+        Object serializer = ProtoStuffSerializer.getInstance();
+        FrameCodec codec = new FrameCodec(CompressingSerializer.wrap(
+                serializer, new DeflateCompressor(), 512));
+        InvokeRequest small = newRequest(1L, "hello");
+        InvokeRequest large = newRequest(2L, repeat("hello ", 1000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeRequest(out, small);
+        int smallLength = out.size();
+        codec.writeRequest(out, large);
+
+        byte[] bytes = out.toByteArray();
+        assertFalse(FrameHeader.decode(bytes, 0).isCompressed());
+        FrameHeader header = FrameHeader.decode(bytes, smallLength);
+        assertTrue(header.isCompressed());
+        assertEquals(DeflateCompressor.ID, header.getCompressorID());
+        assertTrue(header.getBodyLength() < 1000);
+
+        // peers read deflated frames without wrapping their serializer
+        InputStream in = new ByteArrayInputStream(bytes);
+        FrameCodec plain = new FrameCodec(serializer);
+        assertRequest(small, plain.readRequest(in));
+        assertRequest(large, plain.readRequest(in));
+    }
+
+    public void testCompressedBatch() throws IOException {
+        FrameCodec codec = new FrameCodec(CompressingSerializer.wrap(
+                ProtoStuffSerializer.getInstance(), new DeflateCompressor(), 64));
+        List<InvokeRequest> requests = new ArrayList<InvokeRequest>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(newRequest(i, repeat("request-" + i, 100)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeRequests(out, requests);
+
+        List<InvokeRequest> decoded = codec.readRequests(new ByteArrayInputStream(
+                out.toByteArray()));
+        assertEquals(requests.size(), decoded.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertRequest(requests.get(i), decoded.get(i));
+        }
+    }
+
+    public void testCompressorID() throws IOException {
+        FrameCodec codec = new FrameCodec(CompressingSerializer.wrap(
+                ProtoStuffSerializer.getInstance(), new XorCompressor(), 64));
+        InvokeRequest request = newRequest(1L, repeat("hello ", 1000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.writeRequest(out, request);
+
+        byte[] bytes = out.toByteArray();
+        assertEquals(XorCompressor.ID, FrameHeader.decode(bytes, 0)
+                .getCompressorID());
+        assertRequest(request, new FrameCodec(ProtoStuffSerializer
+                .getInstance()).readRequest(new ByteArrayInputStream(bytes)));
+
+        bytes[3] = FrameHeader.compressedFlags(FrameHeader.MAX_COMPRESSOR_ID);
+        try {
+            codec.readRequest(new ByteArrayInputStream(bytes));
+            fail("unknown compressor");
+        } catch (SerializeException expected) {}
+    }
+
+    public void testRegisterCompressor() {
+        FrameCodec.registerCompressor(new XorCompressor());
+        // another instance of the codec
+        FrameCodec.registerCompressor(new XorCompressor());
+        try {
+            FrameCodec.registerCompressor(new DeflateCompressor() {
+                @Override
+                public byte getID() {
+                    return XorCompressor.ID;
+                }
+            });
+            fail("compressor ID taken twice");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            FrameCodec.registerCompressor(new DeflateCompressor() {
+                @Override
+                public byte getID() {
+                    return 0;
+                }
+            });
+            fail("compressor ID out of range");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    /**
+     * deflate scrambled, so that inflating its output fails
+     */
+    private static class XorCompressor implements Compressor {
+        static final byte ID = 14;
+
+        private final DeflateCompressor deflate = new DeflateCompressor();
+
+        @Override
+        public byte getID() {
+            return ID;
+        }
+
+        @Override
+        public void compress(byte[] src, int offset, int length,
+                OutputStream out) throws IOException {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            deflate.compress(src, offset, length, deflated);
+            byte[] bytes = deflated.toByteArray();
+            xor(bytes);
+            out.write(bytes);
+        }
+
+        @Override
+        public void decompress(InputStream in, int length,
+                int originalLength, OutputStream out) throws IOException {
+            byte[] bytes = new byte[length];
+            IOUtils.readFully(in, bytes, 0, length);
+            xor(bytes);
+            deflate.decompress(new ByteArrayInputStream(bytes), length,
+                    originalLength, out);
+        }
+
+        private static void xor(byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] ^= 0x5A;
+            }
+        }
+    }
+}